@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.TreeMap;
-
 import nachos.machine.*;
 
 /**
@@ -17,6 +15,10 @@ public class Alarm {
      * alarm.
      */
     public Alarm() {
+	quantum = Config.getInteger("Alarm.quantum", 2000);
+	Lib.assertTrue(quantum > 0);
+	timeouts = new TimingWheel(Machine.timer().getTime());
+
 	Machine.timer().setInterruptHandler(new Runnable() {
 		public void run() { timerInterrupt(); }
 	    });
@@ -26,18 +28,30 @@ public class Alarm {
      * The timer interrupt handler. This is called by the machine's timer
      * periodically (approximately every 500 clock ticks). Causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, once the scheduler decides it has used up its
+     * time slice.
+     *
+     * <p>
+     * The time slice is <tt>Alarm.quantum</tt> clock ticks, counted from
+     * when the current thread was last given the processor, so a thread that
+     * is still within its quantum keeps running across interrupts.
+     *
+     * <p>
+     * Before that, every timeout whose time has passed is expired, which
+     * puts sleeping threads back on the ready queue.
      */
     public void timerInterrupt() {
-	//KThread.currentThread().yield();
-    	boolean intStatus = Machine.interrupt().disable();
-    	if(!list.isEmpty()){
-    		if(list.firstKey() <= Machine.timer().getTime()){
-    			KThread t = list.pollFirstEntry().getValue();
-    			t.ready();
-    			System.out.println("Thread "+t.getName()+" is ready at "+Machine.timer().getTime());
-    		}
-    	} 
+    	TimingWheel.Entry expired = timeouts.advance(Machine.timer().getTime());
+    	while(expired != null){
+    		TimingWheel.Entry next = expired.next;
+    		((Timeout) expired).expire();
+    		expired = next;
+    	}
+    	
+    	KThread current = KThread.currentThread();
+    	long runTime = Machine.timer().getTime() - current.getDispatchTime();
+    	if(ThreadedKernel.scheduler.timerTick(current, runTime, quantum))
+    		KThread.yield();
     }
 
     /**
@@ -55,16 +69,123 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-	// for now, cheat just to get something working (busy waiting is bad)
-	long wakeTime = Machine.timer().getTime() + x;
 	boolean intStatus = Machine.interrupt().disable();
-	wakeTime = Machine.timer().getTime() + x;
-	System.out.println("Thread "+KThread.currentThread().getName()+" is going to sleep until "+wakeTime+" ticks");
-	list.put(wakeTime,KThread.currentThread());
+	long wakeTime = Machine.timer().getTime() + x;
+	timeouts.schedule(new Sleeper(KThread.currentThread()), wakeTime);
 	KThread.sleep();
 	Machine.interrupt().restore(intStatus);
-	//while (wakeTime > Machine.timer().getTime())
-	  //  KThread.yield();
+    }
+
+    /**
+     * Put the current thread, which has just been added to <i>waitQueue</i>,
+     * to sleep until it is given access or until at least <i>x</i> ticks
+     * have passed, whichever comes first. If the time runs out, the thread
+     * is removed from <i>waitQueue</i> before it is woken. Otherwise the
+     * pending timeout is cancelled. Must be called with interrupts disabled.
+     *
+     * @param	waitQueue	the queue the current thread is waiting on.
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was given access, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    boolean sleepOn(final ThreadQueue waitQueue, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	final KThread thread = KThread.currentThread();
+	TimedWait wait = new TimedWait() {
+		boolean abandon() { return waitQueue.remove(thread); }
+	    };
+	return wait.sleep(thread, x);
+    }
+
+    /**
+     * Schedule a timeout to expire during the first timer interrupt where
+     * <tt>(current time) >= (current time now)+(x)</tt>. Must be called with
+     * interrupts disabled.
+     *
+     * @param	timeout	a timeout that is not already scheduled.
+     * @param	x	the number of clock ticks until the timeout expires.
+     */
+    void schedule(Timeout timeout, long x) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	timeouts.schedule(timeout, Machine.timer().getTime() + x);
+    }
+
+    /**
+     * Cancel a scheduled timeout in constant time. Must be called with
+     * interrupts disabled.
+     *
+     * @param	timeout	the timeout to cancel.
+     * @return	<tt>true</tt> if the timeout had not yet expired.
+     */
+    boolean cancel(Timeout timeout) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return timeouts.cancel(timeout);
+    }
+
+    /**
+     * Test the timed waits built on the alarm: <tt>Lock.tryAcquire()</tt>,
+     * <tt>Semaphore.P(long)</tt>, <tt>Condition2.sleepFor()</tt> and
+     * <tt>KThread.join(long)</tt>, both timing out and being woken in time.
+     */
+    static void timedWaitTest() {
+	final Lock lock = new Lock();
+	final boolean[] result = new boolean[1];
+
+	// a held lock times out, and a released one is acquired in time
+	lock.acquire();
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    result[0] = lock.tryAcquire(1000);
+		}
+	    }).setName("timed lock");
+	waiter.fork();
+	waiter.join();
+	Lib.assertTrue(!result[0]);
+
+	waiter = new KThread(new Runnable() {
+		public void run() {
+		    result[0] = lock.tryAcquire(100000);
+		    if (result[0])
+			lock.release();
+		}
+	    }).setName("timed lock");
+	waiter.fork();
+	ThreadedKernel.alarm.waitUntil(1000);
+	lock.release();
+	waiter.join();
+	Lib.assertTrue(result[0]);
+
+	// a semaphore times out at zero, and is taken once raised
+	final Semaphore semaphore = new Semaphore(0);
+	Lib.assertTrue(!semaphore.P(1000));
+
+	KThread raiser = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(1000);
+		    semaphore.V();
+		}
+	    }).setName("timed semaphore");
+	raiser.fork();
+	Lib.assertTrue(semaphore.P(100000));
+	raiser.join();
+
+	// a condition variable times out still holding the lock
+	Condition2 condition = new Condition2(lock);
+	lock.acquire();
+	Lib.assertTrue(!condition.sleepFor(1000));
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+	lock.release();
+
+	// a join times out on a sleeping thread, and not on a finishing one
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntil(5000);
+		}
+	    }).setName("timed join");
+	sleeper.fork();
+	Lib.assertTrue(!sleeper.join(100));
+	Lib.assertTrue(sleeper.join(100000));
     }
 
     public static void selfTest(){
@@ -88,6 +209,70 @@ public class Alarm {
     	t2.fork();
     }
     
-    private long wakeTime;
-    private TreeMap<Long,KThread> list = new TreeMap<Long,KThread>();
+    /**
+     * An event run by the timer interrupt handler, with interrupts disabled,
+     * once its time has passed.
+     */
+    static abstract class Timeout extends TimingWheel.Entry {
+    	abstract void expire();
+    }
+    
+    /**
+     * A thread sleeping in <tt>waitUntil()</tt>.
+     */
+    private static class Sleeper extends Timeout {
+    	Sleeper(KThread thread) {
+    		this.thread = thread;
+    	}
+    	
+    	void expire() {
+    		thread.ready();
+    	}
+    	
+    	private KThread thread;
+    }
+    
+    /**
+     * A thread waiting for some event with a time limit. When the time runs
+     * out, <tt>abandon()</tt> is asked to withdraw the thread from whatever
+     * it is waiting on; if it was still waiting, it is woken.
+     */
+    static abstract class TimedWait extends Timeout {
+    	/**
+    	 * Put <i>thread</i>, the current thread, to sleep for at most
+    	 * <i>x</i> ticks. Must be called with interrupts disabled.
+    	 *
+    	 * @return	<tt>true</tt> if the thread was woken before the time ran
+    	 *		out.
+    	 */
+    	boolean sleep(KThread thread, long x) {
+    		this.thread = thread;
+    		ThreadedKernel.alarm.schedule(this, x);
+    		KThread.sleep();
+    		ThreadedKernel.alarm.cancel(this);
+    		return !timedOut;
+    	}
+    	
+    	void expire() {
+    		if(abandon()){
+    			timedOut = true;
+    			thread.ready();
+    		}
+    	}
+    	
+    	/**
+    	 * Stop the thread waiting, if it still is.
+    	 *
+    	 * @return	<tt>true</tt> if the thread was still waiting.
+    	 */
+    	abstract boolean abandon();
+    	
+    	private KThread thread;
+    	private boolean timedOut = false;
+    }
+    
+    /** Pending timeouts, keyed by expiry time. */
+    private TimingWheel timeouts;
+    /** The time slice, in clock ticks, before a running thread is preempted. */
+    private long quantum;
 }
@@ -2,21 +2,43 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.LinkedList;
+
 /**
  * A <i>communicator</i> allows threads to synchronously exchange 32-bit
  * messages. Multiple threads can be waiting to <i>speak</i>,
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * Words pass through a bounded ring buffer, so a speaker can deposit several
+ * words, and a listener can collect several words, in a single critical
+ * section using <tt>speakAll()</tt> and <tt>listenAll()</tt>. A speaker still
+ * does not return until every word it spoke has been received.
  */
 public class Communicator {
     /**
-     * Allocate a new communicator.
+     * Allocate a new communicator with room for one word in transit.
      */
     public Communicator() {
+    	this(1);
+    }
+
+    /**
+     * Allocate a new communicator.
+     *
+     * @param	capacity	the number of words that may be waiting for a
+     *				listener at once.
+     */
+    public Communicator(int capacity) {
+    	Lib.assertTrue(capacity > 0);
+    	
+    	buffer = new int[capacity];
     	conditionLock = new Lock();
     	conds = new Condition(conditionLock);
     	condl = new Condition(conditionLock);
+    	condr = new Condition(conditionLock);
     }
 
     /**
@@ -31,10 +53,42 @@ public class Communicator {
      */
     public void speak(int word) {
     	conditionLock.acquire();
-    	while(datas != -1) conds.sleep();
-    	datas = word;
-    	System.out.println(KThread.currentThread().getName()+" spoke "+datas);
+    	while(count == buffer.length) conds.sleep();
+    	buffer[(head+count) % buffer.length] = word;
+    	count++;
+    	spoken++;
     	condl.wake();
+    	if(count < buffer.length) conds.wake();
+    	awaitReceipt(spoken);
+    	conditionLock.release();
+    }
+
+    /**
+     * Transfer every word in <i>words</i>, in order, filling as much of the
+     * buffer as possible each time the lock is held. Does not return until
+     * all of them have been received by listeners.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speakAll(int[] words) {
+    	conditionLock.acquire();
+    	int sent = 0;
+    	long last = 0;
+    	while(sent < words.length){
+    		while(count == buffer.length) conds.sleep();
+    		int n = Math.min(words.length - sent, buffer.length - count);
+    		int tail = (head+count) % buffer.length;
+    		int first = Math.min(n, buffer.length - tail);
+    		System.arraycopy(words, sent, buffer, tail, first);
+    		System.arraycopy(words, sent+first, buffer, 0, n-first);
+    		count += n;
+    		spoken += n;
+    		sent += n;
+    		last = spoken;
+    		condl.wake();
+    	}
+    	if(count < buffer.length) conds.wake();
+    	awaitReceipt(last);
     	conditionLock.release();
     }
 
@@ -46,41 +100,97 @@ public class Communicator {
      */    
     public int listen() {
     	conditionLock.acquire();
-    	conds.wake();
-    	while(datas == -1) condl.sleep();
-    	datal = datas;
-    	System.out.println(KThread.currentThread().getName()+" listened "+datal);
-    	datas = -1;
+    	while(count == 0) condl.sleep();
+    	int word = buffer[head];
+    	head = (head+1) % buffer.length;
+    	count--;
+    	received(1);
+    	conditionLock.release();
+    	return word;
+    }
+
+    /**
+     * Wait for at least one word to be spoken, and then receive as many
+     * waiting words as fit, up to <i>max</i>.
+     *
+     * @param	words	the array to store the received words in.
+     * @param	max	the maximum number of words to receive.
+     * @return	the number of words received, at least one.
+     */
+    public int listenAll(int[] words, int max) {
+    	Lib.assertTrue(max > 0 && max <= words.length);
+    	
+    	conditionLock.acquire();
+    	while(count == 0) condl.sleep();
+    	int n = Math.min(count, max);
+    	int first = Math.min(n, buffer.length - head);
+    	System.arraycopy(buffer, head, words, 0, first);
+    	System.arraycopy(buffer, 0, words, first, n-first);
+    	head = (head+n) % buffer.length;
+    	count -= n;
+    	received(n);
     	conditionLock.release();
-    	return datal;
+    	return n;
+    }
+
+    /**
+     * Sleep until the word with sequence number <i>seq</i> has been received.
+     * Waiting speakers are queued in order of their last word, so a listener
+     * wakes exactly the speakers it has satisfied.
+     */
+    private void awaitReceipt(long seq) {
+    	if(heard >= seq)
+    		return;
+    	pending.add(seq);
+    	condr.sleep();
+    }
+
+    /**
+     * Account for <i>n</i> words removed from the buffer, waking the speakers
+     * whose words have all been received and the next thread waiting on
+     * each side of the buffer.
+     */
+    private void received(int n) {
+    	heard += n;
+    	while(!pending.isEmpty() && pending.getFirst() <= heard){
+    		pending.removeFirst();
+    		condr.wake();
+    	}
+    	conds.wake();
+    	if(count > 0) condl.wake();
     }
     
     public static void selfTest(){
+    	bufferTest();
+    	
     	final Communicator com = new Communicator();
     	
     	KThread t1 = new KThread(new Runnable(){
     		public void run(){
     			com.speak(1);
+    			System.out.println(KThread.currentThread().getName()+" spoke");
     		}
     	}).setName("t1");
     	KThread t2 = new KThread(new Runnable(){
     		public void run(){
-    			com.listen();
+    			System.out.println(KThread.currentThread().getName()+" listened "+com.listen());
     		}
     	}).setName("t2");
     	KThread t3 = new KThread(new Runnable(){
     		public void run(){
     			com.speak(3);
+    			System.out.println(KThread.currentThread().getName()+" spoke");
     		}
     	}).setName("t3");
     	KThread t4 = new KThread(new Runnable(){
     		public void run(){
-    			com.listen();
+    			System.out.println(KThread.currentThread().getName()+" listened "+com.listen());
     		}
     	}).setName("t4");
     	KThread t5 = new KThread(new Runnable(){
     		public void run(){
     			com.speak(5);
+    			System.out.println(KThread.currentThread().getName()+" spoke");
     		}
     	}).setName("t5");
     	/*
@@ -98,9 +208,78 @@ public class Communicator {
     	t5.fork();
     }
 
+    /**
+     * Check that words, including -1, arrive in order through a buffer
+     * smaller than a batch, whether taken one at a time or several at once,
+     * and that speakers return only once their words have been received.
+     */
+    private static void bufferTest(){
+    	final Communicator com = new Communicator(4);
+    	final int[] words = { -1, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    	
+    	KThread speaker = new KThread(new Runnable(){
+    		public void run(){
+    			com.speakAll(words);
+    		}
+    	}).setName("batch speaker");
+    	speaker.fork();
+    	
+    	int[] heard = new int[words.length];
+    	int n = 0;
+    	while(n < words.length){
+    		if(n % 2 == 0){
+    			heard[n++] = com.listen();
+    		}
+    		else{
+    			int[] batch = new int[3];
+    			int got = com.listenAll(batch, Math.min(3, words.length - n));
+    			Lib.assertTrue(got > 0);
+    			System.arraycopy(batch, 0, heard, n, got);
+    			n += got;
+    		}
+    	}
+    	speaker.join();
+    	for(int i=0; i<words.length; i++)
+    		Lib.assertTrue(heard[i] == words[i]);
+    	
+    	// several speakers share the buffer, each word heard exactly once
+    	KThread[] speakers = new KThread[3];
+    	for(int i=0; i<speakers.length; i++){
+    		final int word = -1 - i;
+    		speakers[i] = new KThread(new Runnable(){
+    			public void run(){
+    				com.speak(word);
+    			}
+    		}).setName("speaker " + i);
+    		speakers[i].fork();
+    	}
+    	
+    	int sum = 0;
+    	for(n = 0; n < speakers.length; ){
+    		int[] batch = new int[speakers.length];
+    		int got = com.listenAll(batch, speakers.length - n);
+    		for(int i=0; i<got; i++)
+    			sum += batch[i];
+    		n += got;
+    	}
+    	for(int i=0; i<speakers.length; i++)
+    		speakers[i].join();
+    	Lib.assertTrue(sum == -1-2-3);
+    }
+
     private Lock conditionLock;
+    /** Listeners waiting for a word. */
     private Condition condl;
+    /** Speakers waiting for room in the buffer. */
     private Condition conds;
-    private int datas = -1;
-    private int datal = -1;
+    /** Speakers waiting for their words to be received. */
+    private Condition condr;
+    private LinkedList<Long> pending = new LinkedList<Long>();
+    
+    private int[] buffer;
+    private int head = 0;
+    private int count = 0;
+    /** Total number of words put in and taken out of the buffer. */
+    private long spoken = 0;
+    private long heard = 0;
 }
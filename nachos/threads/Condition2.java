@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -9,7 +7,9 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * Sleeping threads wait on a <tt>ThreadQueue</tt> from the kernel's scheduler,
+ * so <tt>wake()</tt> picks the thread the scheduler would run first (for
+ * example the highest-priority waiter).
  *
  * @see	nachos.threads.Condition
  */
@@ -35,14 +35,37 @@ public class Condition2 {
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+	// Join the wait queue before releasing the lock, so that a wake() made
+	// as soon as the lock is free cannot be missed.
+	boolean intStatus = Machine.interrupt().disable();
+	waitQueue.waitForAccess(KThread.currentThread());
+	conditionLock.release();
+	KThread.sleep();
+	Machine.interrupt().restore(intStatus);
+
+	conditionLock.acquire();
+    }
+
+    /**
+     * Like <tt>sleep()</tt>, but give up waiting once at least <i>ticks</i>
+     * clock ticks have passed. The thread is then removed from this condition
+     * variable, and reacquires the lock before returning in either case.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+     *		<tt>wakeAll()</tt>, or <tt>false</tt> if the wait timed out.
+     */
+    public boolean sleepFor(long ticks) {
+	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	waitQueue.waitForAccess(KThread.currentThread());
 	conditionLock.release();
-	// Add the current thread to the waitQueue for this condition
-    // and then put it to sleep.
-    boolean intStatus = Machine.interrupt().disable();
-    waitQueue.add(KThread.currentThread());
-    KThread.sleep();
-    Machine.interrupt().restore(intStatus);
+	boolean woken = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	Machine.interrupt().restore(intStatus);
+
 	conditionLock.acquire();
+	return woken;
     }
 
     /**
@@ -51,24 +74,29 @@ public class Condition2 {
      */
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	// If we have threads waiting on this condition, get the first one
-    // off the waitQueue and add it to the readyQueue.
-    boolean intStatus = Machine.interrupt().disable();         
-    if(!waitQueue.isEmpty() && waitQueue.peek() != null) {
-            waitQueue.poll().ready();
-    }
-    Machine.interrupt().restore(intStatus);
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = waitQueue.nextThread();
+	if (thread != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
      * Wake up all threads sleeping on this condition variable. The current
-     * thread must hold the associated lock.
+     * thread must hold the associated lock. The whole wait queue is moved to
+     * the ready queue with interrupts disabled only once.
      */
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-	while(!waitQueue.isEmpty())
-		wake();
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread;
+	while ((thread = waitQueue.nextThread()) != null)
+	    thread.ready();
+	Machine.interrupt().restore(intStatus);
     }
+
     public static void selfTest(){
     	Lock l = new Lock();
     	Condition2 c = new Condition2(l);
@@ -121,5 +149,6 @@ public class Condition2 {
     
     private static int shared=0;
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    private ThreadQueue waitQueue =
+	ThreadedKernel.scheduler.newThreadQueue(false);
 }
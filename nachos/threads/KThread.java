@@ -49,7 +49,7 @@ public class KThread {
 	    tcb = new TCB();
 	}	    
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	    readyQueue.acquire(this);	    
 
 	    currentThread = this;
@@ -106,6 +106,17 @@ public class KThread {
 	return name;
     }
 
+    /**
+     * Get the time at which this thread was last given the processor. Used
+     * by the alarm to decide when this thread's time slice is over.
+     *
+     * @return	the value of <tt>Machine.timer().getTime()</tt> when this
+     *		thread last started running.
+     */
+    public long getDispatchTime() {
+	return dispatchTime;
+    }
+
     /**
      * Get the full name of this thread. This includes its name along with its
      * numerical ID. This name is used for debugging purposes only.
@@ -246,8 +257,10 @@ public class KThread {
 	
 	Lib.assertTrue(Machine.interrupt().disabled());
 
-	if (currentThread.status != statusFinished)
+	if (currentThread.status != statusFinished) {
 	    currentThread.status = statusBlocked;
+	    ThreadedKernel.scheduler.threadBlocked(currentThread);
+	}
 
 	runNextThread();
     }
@@ -282,9 +295,9 @@ public class KThread {
 		
 		boolean intStatus = Machine.interrupt().disable(); //Must be atomic
 	
-	    if (status == statusFinished) { return;} //You cannot join to a finished thread
+	    if (status == statusFinished) { Machine.interrupt().restore(intStatus); return;} //You cannot join to a finished thread
 	    if (status == statusNew) { this.ready();} //New threads must be placed onto ready queue
-	    joinQueue.acquire(currentThread);
+	    if (!joined) joinQueue.acquire(this); //This thread holds its own joinQueue, so joiners donate to it
 	    joinQueue.waitForAccess(currentThread); //Puts parent/current thread onto this thread's joinQueue
 	    System.out.println("join "+currentThread.name);
 	    this.joined = true;
@@ -294,6 +307,42 @@ public class KThread {
 
     }
 
+    /**
+     * Waits at most <i>ticks</i> clock ticks for this thread to finish. If
+     * the time runs out first, the current thread stops waiting and no longer
+     * donates priority to this thread. This thread must not be the current
+     * thread.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if this thread has finished, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean join(long ticks) {
+	Lib.debug(dbgThread, "Joining to thread: " + toString() + " for " + ticks);
+
+	Lib.assertTrue(this != currentThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+	boolean finished;
+
+	if (status == statusFinished) {
+	    finished = true;
+	}
+	else if (ticks <= 0) {
+	    finished = false;
+	}
+	else {
+	    if (status == statusNew) this.ready();
+	    if (!joined) joinQueue.acquire(this);
+	    joinQueue.waitForAccess(currentThread);
+	    this.joined = true;
+	    finished = ThreadedKernel.alarm.sleepOn(joinQueue, ticks);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return finished;
+    }
+
     /**
      * Create the idle thread. Whenever there are no threads ready to be run,
      * and <tt>runNextThread()</tt> is called, it will run the idle thread. The
@@ -321,16 +370,17 @@ public class KThread {
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
-    KThread nextThread;
+    KThread nextThread = null;
     if(currentThread.joined && currentThread.status == statusFinished){
     	nextThread = currentThread.joinQueue.nextThread();
     	KThread nextnextThread;
     	while((nextnextThread=currentThread.joinQueue.nextThread()) != null){
-    		readyQueue.waitForAccess(nextnextThread);
+    		nextnextThread.ready();
     	}
-    }else{
-    	nextThread = readyQueue.nextThread();
     }
+    // every joiner may have timed out already
+    if (nextThread == null)
+    	nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
 
@@ -388,6 +438,7 @@ public class KThread {
 	Machine.autoGrader().runningThread(this);
 	
 	status = statusRunning;
+	dispatchTime = Machine.timer().getTime();
 
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
@@ -609,6 +660,7 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    private long dispatchTime = 0;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -50,6 +50,41 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically acquire this lock, waiting at most <i>ticks</i> clock ticks
+     * for it to become <i>free</i>. The current thread must not already hold
+     * this lock.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the lock was acquired, or <tt>false</tt> if
+     *		the wait timed out.
+     */
+    public boolean tryAcquire(long ticks) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+	boolean acquired;
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	    acquired = true;
+	}
+	else if (ticks <= 0) {
+	    acquired = false;
+	}
+	else {
+	    waitQueue.waitForAccess(thread);
+	    acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	}
+
+	Lib.assertTrue(acquired == (lockHolder == thread));
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
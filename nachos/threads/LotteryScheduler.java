@@ -32,7 +32,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +42,288 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test if this module is working, on a private scheduler so that it does
+     * not matter which scheduler the kernel uses.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadQueue queue = scheduler.newThreadQueue(true);
+	KThread holder = new KThread().setName("lottery holder");
+	queue.acquire(holder);
+
+	// enough waiters to make the tree grow twice
+	KThread[] waiters = new KThread[20];
+	for (int i=0; i<waiters.length; i++) {
+	    waiters[i] = new KThread().setName("lottery waiter " + i);
+	    scheduler.setPriority(waiters[i], i+1);
+	    queue.waitForAccess(waiters[i]);
+	}
+	int total = waiters.length*(waiters.length+1)/2;
+
+	// the holder gets the sum of the waiters' tickets, not the maximum
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1 + total);
+
+	scheduler.setPriority(waiters[0], 11);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 11 + total);
+
+	Lib.assertTrue(queue.remove(waiters[1]));
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 9 + total);
+
+	// donations pass on through a chain of queues
+	ThreadQueue outer = scheduler.newThreadQueue(true);
+	KThread outerHolder = new KThread().setName("lottery outer holder");
+	outer.acquire(outerHolder);
+	outer.waitForAccess(holder);
+	Lib.assertTrue(scheduler.getEffectivePriority(outerHolder) ==
+		       10 + total);
+
+	// every waiter is drawn exactly once, and the holder keeps no tickets
+	boolean[] drawn = new boolean[waiters.length];
+	drawn[1] = true;
+	KThread thread;
+	while ((thread = queue.nextThread()) != null) {
+	    int i = 0;
+	    while (waiters[i] != thread)
+		i++;
+	    Lib.assertTrue(!drawn[i]);
+	    drawn[i] = true;
+	}
+	for (int i=0; i<drawn.length; i++)
+	    Lib.assertTrue(drawn[i]);
+	Lib.assertTrue(scheduler.getEffectivePriority(holder) == 1);
+
+	outer.nextThread();
+	Lib.assertTrue(scheduler.getEffectivePriority(outerHolder) == 1);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that picks the next thread by lottery.
+     *
+     * <p>
+     * Each waiting thread occupies one slot of a Fenwick (binary indexed)
+     * tree holding its effective ticket count, so adding, removing or
+     * re-weighting a waiter and drawing the winning ticket all take
+     * O(log n) time in the number of waiters.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no threads are
+	 *		waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (totalTickets == 0)
+		return null;
+
+	    long ticket = (long) (Lib.random() * totalTickets);
+	    if (ticket >= totalTickets)
+		ticket = totalTickets - 1;
+
+	    // descend the tree for the first slot whose prefix sum exceeds ticket
+	    int pos = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step>>=1) {
+		int next = pos + step;
+		if (next <= capacity && tree[next] <= ticket) {
+		    pos = next;
+		    ticket -= tree[next];
+		}
+	    }
+
+	    return slots[pos+1];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    System.out.println(slots[i].thread.getName() + "-" +
+				       slots[i].getPriority() + "-" +
+				       slots[i].getEffectivePriority());
+	    }
+	}
+
+	public void addState(ThreadState thread) {
+	    Lib.assertTrue(thread.queuedOn == null);
+
+	    if (freeCount == 0)
+		grow();
+
+	    int slot = freeSlots[--freeCount];
+	    long tickets = thread.getEffectivePriority();
+
+	    slots[slot] = thread;
+	    weights[slot] = tickets;
+	    adjust(slot, tickets);
+
+	    thread.queuedOn = this;
+	    thread.queuedLevel = slot;
+	}
+
+	public void removeState(ThreadState thread) {
+	    if (thread.queuedOn != this)
+		return;
+
+	    int slot = thread.queuedLevel;
+	    adjust(slot, -weights[slot]);
+	    weights[slot] = 0;
+	    slots[slot] = null;
+	    freeSlots[freeCount++] = slot;
+
+	    thread.queuedOn = null;
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads.
+	 */
+	public long getTotalTickets() {
+	    return totalTickets;
+	}
+
+	private void adjust(int slot, long delta) {
+	    totalTickets += delta;
+	    for (int i=slot; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Double the number of slots and rebuild the tree in linear time.
+	 */
+	private void grow() {
+	    int newCapacity = (capacity == 0) ? 8 : capacity*2;
+
+	    ThreadState[] newSlots = new ThreadState[newCapacity+1];
+	    long[] newWeights = new long[newCapacity+1];
+	    System.arraycopy(slots, 0, newSlots, 0, capacity+1);
+	    System.arraycopy(weights, 0, newWeights, 0, capacity+1);
+
+	    long[] newTree = new long[newCapacity+1];
+	    for (int i=1; i<=newCapacity; i++) {
+		newTree[i] += newWeights[i];
+		int parent = i + (i&-i);
+		if (parent <= newCapacity)
+		    newTree[parent] += newTree[i];
+	    }
+
+	    int[] newFree = new int[newCapacity];
+	    for (int i=newCapacity; i>capacity; i--)
+		newFree[freeCount++] = i;
+
+	    slots = newSlots;
+	    weights = newWeights;
+	    tree = newTree;
+	    freeSlots = newFree;
+	    capacity = newCapacity;
+	}
+
+	private int capacity = 0;
+	private ThreadState[] slots = new ThreadState[1];
+	private long[] weights = new long[1];
+	private long[] tree = new long[1];
+	private int[] freeSlots = new int[0];
+	private int freeCount = 0;
+	private long totalTickets = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under the lottery scheduler. A
+     * thread's effective ticket count is its own tickets plus the tickets of
+     * every thread waiting on a transferring queue it holds.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	protected int computeEffectivePriority() {
+	    long tickets = priority;
+	    for (PriorityQueue resource : myResources) {
+		if (resource.transferPriority)
+		    tickets += ((LotteryQueue) resource).getTotalTickets();
+	    }
+	    return (int) Math.min(tickets, priorityMaximum);
+	}
     }
 }
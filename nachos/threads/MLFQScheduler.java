@@ -0,0 +1,364 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in one FIFO list
+ * per level, and the next thread to receive access is always the first
+ * thread of the highest non-empty level (level 0 is the highest).
+ *
+ * <p>
+ * A thread starts at the top level. At the top level a thread may run for
+ * the alarm's quantum before it is preempted, and the quantum doubles at
+ * each level down. A thread that is preempted is moved down one level, and
+ * a thread that blocks (for example waiting for console I/O) is moved up one
+ * level. To prevent starvation, every thread is periodically boosted back
+ * to the top level.
+ *
+ * <p>
+ * Each queue keeps a bitmap of its non-empty levels, and a boost only bumps
+ * a counter: a queue splices its lower lists onto the top list the next time
+ * it is used, and a thread's level is reset the next time it is looked at.
+ * All operations are therefore O(1).
+ *
+ * <p>
+ * The number of levels and the boost period (in timer interrupts) are read
+ * from the <tt>MLFQScheduler.levels</tt> and
+ * <tt>MLFQScheduler.boostInterval</tt> configuration keys.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multi-level feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 100);
+
+	Lib.assertTrue(numLevels >= 1 && numLevels <= 31);
+	Lib.assertTrue(boostInterval >= 1);
+    }
+
+    /**
+     * Allocate a new multi-level feedback thread queue.
+     *
+     * @param	transferPriority	ignored. Levels are earned by the
+     *					threads' own behavior and are not
+     *					donated.
+     * @return	a new multi-level feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>levels-1</tt> at the
+     * top level, down to <tt>0</tt> at the bottom level.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels - 1 - getLevel(getThreadState(thread));
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * If the specified running thread has used up the quantum of its level,
+     * move it down one level and request that it yield. Every
+     * <tt>boostInterval</tt> calls, boost every thread back to the top
+     * level.
+     */
+    public boolean timerTick(KThread thread, long runTime, long quantum) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (++ticksSinceBoost >= boostInterval) {
+	    ticksSinceBoost = 0;
+	    epoch++;
+	}
+
+	ThreadState state = getThreadState(thread);
+	int level = getLevel(state);
+
+	if (runTime < (quantum << level))
+	    return false;
+
+	if (level < numLevels-1)
+	    state.level = level+1;
+	return true;
+    }
+
+    /**
+     * Move the specified thread, which is about to block, up one level.
+     */
+    public void threadBlocked(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	int level = getLevel(state);
+
+	if (level > 0)
+	    state.level = level-1;
+    }
+
+    /**
+     * Test if this module is working, on a private scheduler so that it does
+     * not matter which scheduler the kernel uses.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	// the demotions below must not trigger a boost, whatever the
+	// configured interval
+	scheduler.boostInterval = 100;
+	boolean intStatus = Machine.interrupt().disable();
+
+	int top = scheduler.numLevels-1;
+	int bottom = Math.max(top-2, 0);
+	long quantum = 100;
+
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread a = new KThread().setName("mlfq a");
+	KThread b = new KThread().setName("mlfq b");
+	KThread c = new KThread().setName("mlfq c");
+
+	// a thread is demoted only once it uses up its level's quantum, and
+	// the quantum doubles at each level down
+	Lib.assertTrue(!scheduler.timerTick(a, quantum-1, quantum));
+	Lib.assertTrue(scheduler.getPriority(a) == top);
+	Lib.assertTrue(scheduler.timerTick(a, quantum, quantum));
+	if (top > 0) {
+	    Lib.assertTrue(scheduler.getPriority(a) == top-1);
+	    Lib.assertTrue(!scheduler.timerTick(a, 2*quantum-1, quantum));
+	}
+
+	// higher levels go first, and each level is FIFO
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	queue.waitForAccess(c);
+	Lib.assertTrue(queue.nextThread() == ((top > 0) ? b : a));
+	Lib.assertTrue(queue.nextThread() == ((top > 0) ? c : b));
+	Lib.assertTrue(queue.nextThread() == ((top > 0) ? a : c));
+	Lib.assertTrue(queue.nextThread() == null);
+
+	// blocking moves a thread back up
+	scheduler.threadBlocked(a);
+	Lib.assertTrue(scheduler.getPriority(a) == top);
+
+	// a waiting thread can be removed from any level
+	while (scheduler.getPriority(b) > bottom)
+	    scheduler.timerTick(b, quantum << top, quantum);
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	Lib.assertTrue(queue.remove(a));
+	Lib.assertTrue(!queue.remove(a));
+	Lib.assertTrue(queue.nextThread() == b);
+
+	// a boost puts every thread, queued or not, back on the top level,
+	// queued threads behind those already there
+	queue.waitForAccess(b);
+	queue.waitForAccess(a);
+	scheduler.ticksSinceBoost = 0;
+	for (int i=0; i<scheduler.boostInterval; i++)
+	    scheduler.timerTick(c, 0, quantum);
+	Lib.assertTrue(scheduler.getPriority(b) == top);
+	Lib.assertTrue(scheduler.ticksSinceBoost == 0);
+	Lib.assertTrue(queue.nextThread() == a);
+	Lib.assertTrue(queue.nextThread() == b);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current level of a thread, first resetting it to the top
+     * level if a boost has happened since it was last looked at.
+     */
+    private int getLevel(ThreadState state) {
+	if (state.epoch != epoch) {
+	    state.epoch = epoch;
+	    state.level = 0;
+	}
+
+	return state.level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    private class FeedbackQueue extends ThreadQueue {
+	/**
+	 * Append a thread to the end of the list for its current level.
+	 *
+	 * @param	thread	the thread to append to the queue.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+
+	    ThreadState state = getThreadState(thread);
+	    int level = getLevel(state);
+
+	    state.queuedOn = this;
+	    state.queuedLevel = level;
+	    state.queuedEpoch = queueEpoch;
+	    state.next = null;
+	    state.prev = tails[level];
+	    if (tails[level] == null)
+		heads[level] = state;
+	    else
+		tails[level].next = state;
+	    tails[level] = state;
+	    levelBitmap |= 1 << level;
+	}
+
+	/**
+	 * Remove the first thread from the highest non-empty level.
+	 *
+	 * @return	the first thread on the queue, or <tt>null</tt> if the
+	 *		queue is empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+
+	    if (levelBitmap == 0)
+		return null;
+
+	    ThreadState state = heads[Integer.numberOfTrailingZeros(levelBitmap)];
+	    unlink(state);
+
+	    return state.thread;
+	}
+
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.queuedOn != this)
+		return false;
+
+	    applyBoost();
+	    unlink(state);
+	    return true;
+	}
+
+	private void unlink(ThreadState state) {
+	    // a thread queued before the last splice is now in the top list
+	    int level = (state.queuedEpoch == queueEpoch) ? state.queuedLevel : 0;
+
+	    if (state.prev == null)
+		heads[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tails[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+	    if (heads[level] == null)
+		levelBitmap &= ~(1 << level);
+
+	    state.queuedOn = null;
+	    state.prev = state.next = null;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Nothing to do.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	/**
+	 * Print out the contents of the queue, highest level first.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+
+	    for (int level=0; level<numLevels; level++) {
+		for (ThreadState s=heads[level]; s!=null; s=s.next)
+		    System.out.print(s.thread + "@" + level + " ");
+	    }
+	}
+
+	/**
+	 * If a boost has happened since this queue was last used, splice every
+	 * lower list, in order, onto the end of the top list.
+	 */
+	private void applyBoost() {
+	    if (queueEpoch == epoch)
+		return;
+
+	    queueEpoch = epoch;
+
+	    for (int level=1; level<numLevels; level++) {
+		if (heads[level] == null)
+		    continue;
+
+		if (tails[0] == null)
+		    heads[0] = heads[level];
+		else
+		    tails[0].next = heads[level];
+		heads[level].prev = tails[0];
+		tails[0] = tails[level];
+		heads[level] = tails[level] = null;
+	    }
+
+	    levelBitmap = (heads[0] == null) ? 0 : 1;
+	}
+
+	private ThreadState[] heads = new ThreadState[numLevels];
+	private ThreadState[] tails = new ThreadState[numLevels];
+	private int levelBitmap = 0;
+	private long queueEpoch = epoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level and its links in the queue
+     * it is waiting on.
+     */
+    protected class ThreadState {
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = MLFQScheduler.this.epoch;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of this thread, valid only if <tt>epoch</tt> is current. */
+	protected int level = 0;
+	/** The boost count when <tt>level</tt> was last updated. */
+	protected long epoch;
+	/** The queue this thread is waiting on, if any. */
+	protected FeedbackQueue queuedOn = null;
+	/** The list this thread was added to, and that queue's boost count. */
+	protected int queuedLevel;
+	protected long queuedEpoch;
+	/** The neighbors of this thread in its list. */
+	protected ThreadState prev = null, next = null;
+    }
+
+    private int numLevels;
+    private int boostInterval;
+    private int ticksSinceBoost = 0;
+    /** Number of boosts so far. */
+    private long epoch = 0;
+}
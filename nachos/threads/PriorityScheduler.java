@@ -122,12 +122,17 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO list per priority level, and a
+     * bitmap records which levels are non-empty. Since there are only
+     * <tt>priorityMaximum+1</tt> levels, adding, removing or re-prioritizing
+     * a thread and finding the highest waiting priority are all O(1).
      */
     protected class PriorityQueue extends ThreadQueue {
 	
 	    PriorityQueue(boolean transferPriority) {
 	    	this.transferPriority = transferPriority;
-	    	highestPriority = priorityMinimum;
 		}
 	
 		public void waitForAccess(KThread thread) {
@@ -138,19 +143,30 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(KThread thread) {
 		    Lib.assertTrue(Machine.interrupt().disabled());
 		    getThreadState(thread).acquire(this);
-		    running = thread;
 		}
 	
 		public KThread nextThread() {
 		    Lib.assertTrue(Machine.interrupt().disabled());
 		    
-		    if(!orderedThreads.isEmpty()){
-		    	KThread thread = orderedThreads.poll().thread;
-		    	getThreadState(thread).acquire(this);
-		    	running = thread;
-		    	return thread;
+		    ThreadState next = pickNextThread();
+		    if(next == null){
+		    	setHolder(null);
+		    	return null;
 		    }
-		    return null;
+		    
+		    next.acquire(this);
+		    return next.thread;
+		}
+	
+		public boolean remove(KThread thread) {
+		    Lib.assertTrue(Machine.interrupt().disabled());
+		    
+		    ThreadState state = getThreadState(thread);
+		    if(state.queuedOn != this)
+		    	return false;
+		    
+		    state.cancelWait(this);
+		    return true;
 		}
 	
 		/**
@@ -161,52 +177,100 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected ThreadState pickNextThread() {
-		    // implement me
-		    return orderedThreads.peek();
+		    if(levelBitmap == 0)
+		    	return null;
+		    return heads[highestLevel()];
 		}
 		
 		public void print() {
 		    Lib.assertTrue(Machine.interrupt().disabled());
-		    // implement me (if you want)
-		    Iterator it = orderedThreads.iterator();
-		    while(it.hasNext()){
-		    	ThreadState t= ((ThreadState)it.next());
-		    	System.out.println(t.thread.getName()+"-"+t.getPriority()+"-"+t.getWaitingTime()+"-"+t.getEffectivePriority());
+		    for(int level = priorityMaximum; level >= priorityMinimum; level--){
+		    	for(ThreadState t = heads[level]; t != null; t = t.nextWaiter)
+		    		System.out.println(t.thread.getName()+"-"+t.getPriority()+"-"+t.getWaitingTime()+"-"+t.getEffectivePriority());
 		    }
 		}
 	
+		/**
+		 * Append a thread to the tail of the list for its current effective
+		 * priority.
+		 */
 		public void addState(ThreadState thread) {
-            this.orderedThreads.add(thread);
-            updateHighestPriorityOnAdd(thread);
+			Lib.assertTrue(thread.queuedOn == null);
+			
+			int level = thread.getEffectivePriority();
+			thread.queuedOn = this;
+			thread.queuedLevel = level;
+			thread.prevWaiter = tails[level];
+			thread.nextWaiter = null;
+			if(tails[level] == null)
+				heads[level] = thread;
+			else
+				tails[level].nextWaiter = thread;
+			tails[level] = thread;
+			levelBitmap |= 1 << level;
 	    }
 	    
+		/**
+		 * Unlink a thread from the list it was added to. Does nothing if the
+		 * thread is not waiting on this queue.
+		 */
 	    public void removeState(ThreadState thread) {
-	            this.orderedThreads.remove(thread);
-	            updateHighestPriorityOnRemove(thread);
+	    	if(thread.queuedOn != this)
+	    		return;
+	    	
+	    	int level = thread.queuedLevel;
+	    	if(thread.prevWaiter == null)
+	    		heads[level] = thread.nextWaiter;
+	    	else
+	    		thread.prevWaiter.nextWaiter = thread.nextWaiter;
+	    	if(thread.nextWaiter == null)
+	    		tails[level] = thread.prevWaiter;
+	    	else
+	    		thread.nextWaiter.prevWaiter = thread.prevWaiter;
+	    	if(heads[level] == null)
+	    		levelBitmap &= ~(1 << level);
+	    	
+	    	thread.queuedOn = null;
+	    	thread.prevWaiter = thread.nextWaiter = null;
 	    }
 	    
-	    private void updateHighestPriorityOnAdd(ThreadState thread){
-	    	if(transferPriority && thread.getPriority() > highestPriority)
-	    		highestPriority = thread.getPriority();
+	    private int highestLevel(){
+	    	return 31 - Integer.numberOfLeadingZeros(levelBitmap);
 	    }
 	    
-	    private void updateHighestPriorityOnRemove(ThreadState thread){
-	    	if(transferPriority){
-		    	Iterator it = orderedThreads.iterator();
-			    while(it.hasNext()){
-			    	int p = ((ThreadState)it.next()).getPriority();
-			    	if(p > highestPriority)
-			    		highestPriority = p;
-			    }
-	    	}
+	    /**
+	     * Return the highest effective priority of the threads waiting on
+	     * this queue, or <tt>priorityMinimum</tt> if it is empty.
+	     */
+	    public int getHighestPriority(){
+	    	if(levelBitmap == 0)
+	    		return priorityMinimum;
+	    	return highestLevel();
 	    }
 	    
-	    public int getHighestPriority(){
-	    	return highestPriority;
+	    /**
+	     * Hand this queue to a new holder, taking the donations made through
+	     * it away from the previous holder.
+	     *
+	     * @param	state	the new holder, or <tt>null</tt> if none.
+	     */
+	    protected void setHolder(ThreadState state){
+	    	if(holder == state)
+	    		return;
+	    	
+	    	ThreadState previous = holder;
+	    	holder = state;
+	    	if(previous != null)
+	    		previous.release(this);
+	    	if(state != null){
+	    		state.myResources.add(this);
+	    		if(transferPriority)
+	    			state.updateEffectivePriority();
+	    	}
 	    }
 	    
 	    public KThread getRunning(){
-	    	return running;
+	    	return holder == null ? null : holder.thread;
 	    }
 	    
 		/**
@@ -214,31 +278,16 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
-		private int highestPriority;
-		private KThread running = null;
+		/** The thread that currently has access, if any. */
+		protected ThreadState holder = null;
 		/**
-		 * Stores the threadStates in the order of priorities
+		 * Head and tail of the FIFO list of waiting threads at each priority
+		 * level, and a bitmap with bit <i>p</i> set when level <i>p</i> is
+		 * non-empty.
 		 */
-        private java.util.PriorityQueue<ThreadState> orderedThreads = new java.util.PriorityQueue<ThreadState>(10, new ThreadComparator());
-        
-        protected class ThreadComparator implements Comparator<ThreadState> {
-            @Override
-            public int compare(ThreadState t1, ThreadState t2) {
-                    if (t1.getEffectivePriority() > t2.getEffectivePriority()) {
-                            return -1;
-                    } else if (t1.getEffectivePriority() < t2.getEffectivePriority()) {
-                            return 1;
-                    } else {
-                            if (t1.getWaitingTime() < t2.getWaitingTime()) {
-                                    return -1;
-                            } else if(t1.getWaitingTime() > t2.getWaitingTime()) {
-                                    return 1;
-                            } else {
-                                    return 0;
-                            }
-                    }
-            }
-    }
+		private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+		private int levelBitmap = 0;
     }
 
     /**
@@ -279,34 +328,58 @@ public class PriorityScheduler extends Scheduler {
 		/**
 		 * Return the effective priority of the associated thread.
 		 *
+		 * <p>
+		 * The value is cached; it is recomputed by
+		 * <tt>updateEffectivePriority()</tt> whenever this thread's priority
+		 * or the set of threads donating to it changes.
+		 *
 		 * @return	the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-		    // implement me
-			//int effectivePriority = priority;
-			//if(waitingOn != null)
-				//effectivePriority = waitingOn.getHighestPriority();
-			//if(priority > effectivePriority)
-				return effectivePriority;
-			//else
-				//return effectivePriority;
+			return effectivePriority;
 		}
 		
-		public void updateEffectivePriority(int p){
-			 
-			if(waitingOn != null && waitingOn.transferPriority && p > effectivePriority){
-			    waitingOn.removeState(this);
-				effectivePriority = p;
-			    waitingOn.addState(this);
-			}
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it holds. If it
+		 * changed, move the thread within the queue it is waiting on and
+		 * pass the change on to that queue's holder, so donation follows
+		 * the whole chain of locks and joins.
+		 *
+		 * <p>
+		 * Each step costs time proportional to the number of resources held
+		 * by one thread, and propagation stops as soon as a holder's
+		 * effective priority does not change.
+		 */
+		protected void updateEffectivePriority() {
+			int p = computeEffectivePriority();
+			if(p == effectivePriority)
+				return;
 			
+			PriorityQueue queue = queuedOn;
+			if(queue != null) queue.removeState(this);
+			effectivePriority = p;
+			if(queue != null) queue.addState(this);
+			
+			if(waitingOn != null && waitingOn.transferPriority) {
+				ThreadState holder = waitingOn.holder;
+				if(holder != null && holder != this)
+					holder.updateEffectivePriority();
+			}
 		}
 		
-		public void donatePriority(){
-			if(waitingOn != null && getThreadState(waitingOn.getRunning()).getPriority() < this.getPriority()){
-				if(getThreadState(waitingOn.getRunning()).waitingOn != null)
-					getThreadState(waitingOn.getRunning()).updateEffectivePriority(this.getEffectivePriority());
+		/**
+		 * Return the effective priority this thread should have: the maximum
+		 * of its own priority and the highest priority waiting on any
+		 * priority-transferring queue it holds.
+		 */
+		protected int computeEffectivePriority() {
+			int p = priority;
+			for(PriorityQueue resource : myResources){
+				if(resource.transferPriority)
+					p = Math.max(p, resource.getHighestPriority());
 			}
+			return p;
 		}
 	
 		/**
@@ -317,11 +390,9 @@ public class PriorityScheduler extends Scheduler {
 		public void setPriority(int priority) {
 		    if (this.priority == priority)
 			return;
-		    // implement me
-		    if(waitingOn != null) waitingOn.removeState(this);
+		    
 		    this.priority = priority;
-		    this.effectivePriority = priority;
-		    if(waitingOn != null) waitingOn.addState(this);
+		    updateEffectivePriority();
 		}
 	
 		/**
@@ -337,13 +408,29 @@ public class PriorityScheduler extends Scheduler {
 		 * @see	nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-		    // implement me
 			waitQueue.addState(this);
 			waitingOn = waitQueue;
-			if (myResources.indexOf(waitQueue) != -1) {
-	            myResources.remove(waitQueue);
-	        }
-			if(waitingOn.transferPriority) donatePriority();
+			
+			ThreadState holder = waitQueue.holder;
+			if(waitQueue.transferPriority && holder != null && holder != this)
+				holder.updateEffectivePriority();
+		}
+	
+		/**
+		 * Called when the associated thread stops waiting for access to
+		 * <tt>waitQueue</tt> without acquiring it, so that it no longer
+		 * donates to the holder.
+		 *
+		 * @see	nachos.threads.ThreadQueue#remove
+		 */
+		public void cancelWait(PriorityQueue waitQueue) {
+			waitQueue.removeState(this);
+			if(waitingOn == waitQueue)
+				waitingOn = null;
+			
+			ThreadState holder = waitQueue.holder;
+			if(waitQueue.transferPriority && holder != null && holder != this)
+				holder.updateEffectivePriority();
 		}
 	
 		/**
@@ -353,30 +440,52 @@ public class PriorityScheduler extends Scheduler {
 		 * <tt>thread</tt> is the associated thread), or as a result of
 		 * <tt>nextThread()</tt> being invoked on <tt>waitQueue</tt>.
 		 *
+		 * <p>
+		 * The previous holder of <tt>waitQueue</tt>, if any, loses the
+		 * donations made through it.
+		 *
 		 * @see	nachos.threads.ThreadQueue#acquire
 		 * @see	nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-		    // implement me
 		    Lib.assertTrue(Machine.interrupt().disabled());
-		    if (myResources.indexOf(waitQueue) == -1) {
-	            myResources.add(waitQueue);
-	        }
+		    
 		    waitQueue.removeState(this);
 		    if(waitingOn == waitQueue){
 		    	waitingOn = null;
 		    }
-		}	
+		    
+		    waitQueue.setHolder(this);
+		}
+		
+		/**
+		 * Called when the associated thread no longer has access to whatever
+		 * is guarded by <tt>waitQueue</tt>.
+		 */
+		public void release(PriorityQueue waitQueue) {
+			if(myResources.remove(waitQueue) && waitQueue.transferPriority)
+				updateEffectivePriority();
+		}
 	
 		/** The thread with which this object is associated. */	   
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
+		/** The cached effective priority of the associated thread. */
 		protected int effectivePriority;
 		
-		protected PriorityQueue waitingOn = new PriorityQueue(true);
+		/** The queue this thread is waiting for access to, if any. */
+		protected PriorityQueue waitingOn = null;
 		protected long waitingTime;
-	    protected LinkedList<PriorityQueue> myResources = new LinkedList<PriorityQueue>(); 
+		/**
+		 * The queue whose lists currently hold this thread, if any, and the
+		 * position within that queue.
+		 */
+		protected PriorityQueue queuedOn = null;
+		protected int queuedLevel;
+		protected ThreadState prevWaiter, nextWaiter;
+		/** The queues this thread currently holds. */
+	    protected HashSet<PriorityQueue> myResources = new HashSet<PriorityQueue>(); 
     }
 	int i=0;
     
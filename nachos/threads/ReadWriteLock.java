@@ -0,0 +1,325 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>.
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>/<tt>releaseRead()</tt>: share the lock with
+ * other readers.
+ * <li><tt>acquireWrite()</tt>/<tt>releaseWrite()</tt>: hold the lock
+ * exclusively.
+ * <li><tt>downgrade()</tt>: atomically turn a write hold into a read hold,
+ * letting waiting readers in without letting a writer get in first.
+ * </ul>
+ *
+ * <p>
+ * Waiting readers and writers sleep on separate thread queues that transfer
+ * priority, so both donate to the thread that owns the lock. While readers
+ * share the lock, one of them is the owner; when it leaves before the others,
+ * ownership passes to another reader still holding the lock.
+ *
+ * <p>
+ * In writer-preference mode, a new reader waits whenever a writer is waiting,
+ * and a released lock goes to a waiting writer first. Otherwise readers may
+ * join readers already holding the lock, and a released lock goes to all
+ * waiting readers first.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock without writer preference. The lock will
+     * initially be free.
+     */
+    public ReadWriteLock() {
+	this(false);
+    }
+
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     *
+     * @param	writerPreference	<tt>true</tt> if waiting writers should
+     *					be served before waiting readers.
+     */
+    public ReadWriteLock(boolean writerPreference) {
+	this.writerPreference = writerPreference;
+    }
+
+    /**
+     * Atomically wait until no writer holds or has priority for this lock,
+     * then hold it as a reader. The current thread must not already hold
+     * this lock.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && !(writerPreference && waitingWriters > 0)) {
+	    addReader(thread);
+	}
+	else {
+	    waitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(readers.contains(thread));
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release a read hold on this lock.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	boolean held = readers.remove(thread);
+	Lib.assertTrue(held);
+
+	if (readers.isEmpty())
+	    grant();
+	else if (owner == thread)
+	    setOwner(readers.iterator().next());
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically wait until this lock is free, then hold it as the writer.
+     * The current thread must not already hold this lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	if (writer == null && readers.isEmpty()) {
+	    writer = thread;
+	    setOwner(thread);
+	}
+	else {
+	    waitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release the write hold on this lock.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	grant();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically turn the current thread's write hold into a read hold, and
+     * let in the readers that are waiting unless a writer has priority.
+     */
+    public void downgrade() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	writer = null;
+	readers.add(thread);
+	if (!(writerPreference && waitingWriters > 0))
+	    admitReaders();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock, as a reader or a writer.
+     *
+     * @return	true if the current thread holds this lock.
+     */
+    public boolean isHeldByCurrentThread() {
+	KThread thread = KThread.currentThread();
+	return (writer == thread || readers.contains(thread));
+    }
+
+    /**
+     * Test if the current thread holds this lock as the writer.
+     *
+     * @return	true if the current thread holds the write lock.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    private void addReader(KThread thread) {
+	readers.add(thread);
+	if (readers.size() == 1)
+	    setOwner(thread);
+    }
+
+    /**
+     * Make <i>thread</i> the thread that both queues donate to.
+     */
+    private void setOwner(KThread thread) {
+	owner = thread;
+	readQueue.acquire(thread);
+	writeQueue.acquire(thread);
+    }
+
+    /**
+     * Hand the now free lock to the next writer or to all waiting readers.
+     */
+    private void grant() {
+	owner = null;
+
+	if (waitingWriters > 0 && (writerPreference || waitingReaders == 0)) {
+	    writer = writeQueue.nextThread();
+	    waitingWriters--;
+	    setOwner(writer);
+	    writer.ready();
+	}
+	else if (waitingReaders > 0) {
+	    admitReaders();
+	}
+	else {
+	    // nobody is waiting; release both queues so no one keeps donations
+	    readQueue.nextThread();
+	    writeQueue.nextThread();
+	}
+    }
+
+    private void admitReaders() {
+	KThread thread;
+	while ((thread = readQueue.nextThread()) != null) {
+	    waitingReaders--;
+	    readers.add(thread);
+	    thread.ready();
+	}
+
+	setOwner(readers.iterator().next());
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final LinkedList<String> events = new LinkedList<String>();
+
+	// readers share the lock, and a writer waits for all of them
+	final ReadWriteLock shared = new ReadWriteLock();
+	shared.acquireRead();
+
+	KThread reader = new KThread(new Runnable() {
+		public void run() {
+		    shared.acquireRead();
+		    events.add("read");
+		    shared.releaseRead();
+		}
+	    }).setName("rw reader");
+	reader.fork();
+	reader.join();
+	Lib.assertTrue(events.removeFirst().equals("read"));
+
+	KThread writer = new KThread(new Runnable() {
+		public void run() {
+		    shared.acquireWrite();
+		    events.add("write");
+		    shared.releaseWrite();
+		}
+	    }).setName("rw writer");
+	writer.fork();
+	while (shared.waitingWriters == 0)
+	    KThread.yield();
+	Lib.assertTrue(events.isEmpty());
+
+	shared.releaseRead();
+	writer.join();
+	Lib.assertTrue(events.removeFirst().equals("write"));
+
+	// with writer preference, a waiting writer goes before a new reader
+	final ReadWriteLock preferring = new ReadWriteLock(true);
+	preferring.acquireRead();
+
+	writer = new KThread(new Runnable() {
+		public void run() {
+		    preferring.acquireWrite();
+		    events.add("write");
+		    preferring.releaseWrite();
+		}
+	    }).setName("rw writer");
+	writer.fork();
+	while (preferring.waitingWriters == 0)
+	    KThread.yield();
+
+	reader = new KThread(new Runnable() {
+		public void run() {
+		    preferring.acquireRead();
+		    events.add("read");
+		    preferring.releaseRead();
+		}
+	    }).setName("rw reader");
+	reader.fork();
+	while (preferring.waitingReaders == 0)
+	    KThread.yield();
+
+	preferring.releaseRead();
+	writer.join();
+	reader.join();
+	Lib.assertTrue(events.removeFirst().equals("write"));
+	Lib.assertTrue(events.removeFirst().equals("read"));
+
+	// downgrading lets waiting readers in while still holding the lock
+	final ReadWriteLock downgrading = new ReadWriteLock();
+	downgrading.acquireWrite();
+
+	reader = new KThread(new Runnable() {
+		public void run() {
+		    downgrading.acquireRead();
+		    events.add("read");
+		    downgrading.releaseRead();
+		}
+	    }).setName("rw reader");
+	reader.fork();
+	while (downgrading.waitingReaders == 0)
+	    KThread.yield();
+
+	downgrading.downgrade();
+	reader.join();
+	Lib.assertTrue(events.removeFirst().equals("read"));
+	Lib.assertTrue(downgrading.isHeldByCurrentThread() &&
+		       !downgrading.isWriteHeldByCurrentThread());
+	downgrading.releaseRead();
+    }
+
+    private boolean writerPreference;
+
+    private KThread writer = null;
+    /** The readers holding the lock, in the order they got it. */
+    private LinkedHashSet<KThread> readers = new LinkedHashSet<KThread>();
+    /** The holder that waiting threads currently donate to. */
+    private KThread owner = null;
+
+    private int waitingReaders = 0;
+    private int waitingWriters = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
@@ -59,14 +59,21 @@ public class RoundRobinScheduler extends Scheduler {
 	}
 
 	/**
-	 * The specified thread has received exclusive access, without using
-	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
-	 * threads are waiting for access.
+	 * The specified thread has received access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. A FIFO queue does
+	 * not track who has access, so there is nothing to do.
 	 */
 	public void acquire(KThread thread) {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-		       
-	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	/**
+	 * Remove a thread from anywhere in the queue.
+	 */
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    return waitQueue.remove(thread);
 	}
 
 	/**Queue
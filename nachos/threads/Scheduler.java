@@ -154,4 +154,31 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * to decide whether the running thread should be preempted. By default a
+     * thread is preempted once it has run for a whole quantum since it was
+     * last given the processor.
+     *
+     * @param	thread	the thread that is running.
+     * @param	runTime	the number of clock ticks <i>thread</i> has been
+     *			running since it was last given the processor.
+     * @param	quantum	the configured time slice, in clock ticks.
+     * @return	<tt>true</tt> if the thread should yield the processor.
+     */
+    public boolean timerTick(KThread thread, long runTime, long quantum) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return runTime >= quantum;
+    }
+
+    /**
+     * Called with interrupts disabled when the specified thread, the current
+     * thread, is about to block on a synchronization primitive.
+     *
+     * @param	thread	the thread that is blocking.
+     */
+    public void threadBlocked(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
 }
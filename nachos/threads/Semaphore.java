@@ -48,6 +48,34 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Atomically wait at most <i>ticks</i> clock ticks for this semaphore to
+     * become non-zero, and decrement it if it does.
+     *
+     * @param	ticks	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the semaphore was decremented, or
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long ticks) {
+	boolean intStatus = Machine.interrupt().disable();
+	boolean acquired;
+
+	if (value > 0) {
+	    value--;
+	    acquired = true;
+	}
+	else if (ticks <= 0) {
+	    acquired = false;
+	}
+	else {
+	    waitQueue.waitForAccess(KThread.currentThread());
+	    acquired = ThreadedKernel.alarm.sleepOn(waitQueue, ticks);
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -83,6 +83,11 @@ public abstract class ThreadQueue {
      * should call this method.
      *
      * <p>
+     * For a resource shared by several threads at once (such as a read lock),
+     * this method may also be called while threads are waiting, to make
+     * another of the threads sharing it the one that receives priority.
+     *
+     * <p>
      * This method should not be called for a thread returned from
      * <tt>nextThread()</tt>.
      *
@@ -91,6 +96,18 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Remove the specified thread from this queue without giving it access.
+     * This is used when a thread stops waiting because its wait timed out.
+     * If the limited access object transfers priority, the thread no longer
+     * donates priority to the thread that has access.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting for access on this
+     *		queue.
+     */
+    public abstract boolean remove(KThread thread);
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -41,7 +41,9 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, <tt>TimingWheel</tt>, <tt>ReadWriteLock</tt>,
+     * <tt>LotteryScheduler</tt>, <tt>MLFQScheduler</tt>, and
+     * <tt>ElevatorBank</tt> classes, and the timed waits. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -49,6 +51,11 @@ public class ThreadedKernel extends Kernel {
 	KThread.selfTest();
 	Semaphore.selfTest();
 	SynchList.selfTest();
+	TimingWheel.selfTest();
+	Alarm.timedWaitTest();
+	ReadWriteLock.selfTest();
+	LotteryScheduler.selfTest();
+	MLFQScheduler.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -83,4 +90,6 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static ReadWriteLock dummy9 = null;
 }
@@ -0,0 +1,228 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A hierarchical timing wheel, used by <tt>Alarm</tt> to keep track of
+ * sleeping threads.
+ *
+ * <p>
+ * Times are viewed as base-64 numbers. Level <i>L</i> of the wheel has 64
+ * slots, one per value of digit <i>L</i>. An entry is stored at the highest
+ * digit in which its deadline differs from the wheel's current time, in the
+ * slot given by that digit of the deadline. Each level also keeps a bitmap of
+ * its non-empty slots, so the next slot to expire is found without visiting
+ * empty ones. When the current time reaches a slot above level 0, that
+ * slot's entries are re-inserted at a lower level.
+ *
+ * <p>
+ * Scheduling and cancelling an entry are O(1), any number of entries may
+ * share a deadline, and <tt>advance()</tt> collects every expired entry in a
+ * single call. Each entry is moved down at most once per level.
+ */
+class TimingWheel {
+    /**
+     * Allocate a new, empty timing wheel.
+     *
+     * @param	now	the current time.
+     */
+    TimingWheel(long now) {
+	this.now = now;
+    }
+
+    /**
+     * Schedule an entry to expire at the specified time. Deadlines that are
+     * not after the wheel's current time expire on the next call to
+     * <tt>advance()</tt>.
+     *
+     * @param	entry		an entry that is not currently scheduled.
+     * @param	deadline	the time at which the entry expires.
+     */
+    void schedule(Entry entry, long deadline) {
+	Lib.assertTrue(entry.level < 0);
+
+	entry.deadline = Math.max(deadline, now+1);
+	insert(entry);
+    }
+
+    /**
+     * Remove a scheduled entry from the wheel. Does nothing if the entry has
+     * already expired or was never scheduled.
+     *
+     * @param	entry	the entry to cancel.
+     * @return	<tt>true</tt> if the entry was scheduled.
+     */
+    boolean cancel(Entry entry) {
+	if (entry.level < 0)
+	    return false;
+
+	int level = entry.level, slot = entry.slot;
+	if (entry.prev == null)
+	    heads[level][slot] = entry.next;
+	else
+	    entry.prev.next = entry.next;
+	if (entry.next != null)
+	    entry.next.prev = entry.prev;
+	if (heads[level][slot] == null)
+	    occupied[level] &= ~(1L << slot);
+
+	entry.level = -1;
+	entry.prev = entry.next = null;
+	return true;
+    }
+
+    /**
+     * Advance the wheel's current time and remove every entry whose deadline
+     * is not after the new time.
+     *
+     * @param	time	the new current time.
+     * @return	the expired entries, linked through <tt>next</tt> in order of
+     *		deadline, or <tt>null</tt> if none expired.
+     */
+    Entry advance(long time) {
+	Entry expired = null, last = null;
+
+	while (true) {
+	    int level = 0;
+	    while (level < numLevels && occupied[level] == 0)
+		level++;
+	    if (level == numLevels)
+		break;
+
+	    // the earliest slot of the lowest non-empty level is the next to expire
+	    int slot = Long.numberOfTrailingZeros(occupied[level]);
+	    int shift = level*bitsPerLevel;
+	    long blockMask = (shift+bitsPerLevel >= 64) ? 0 :
+		-1L << (shift+bitsPerLevel);
+	    long slotTime = (now & blockMask) | ((long) slot << shift);
+	    if (slotTime > time)
+		break;
+
+	    now = slotTime;
+
+	    Entry entry = heads[level][slot];
+	    heads[level][slot] = null;
+	    occupied[level] &= ~(1L << slot);
+
+	    while (entry != null) {
+		Entry next = entry.next;
+		entry.prev = entry.next = null;
+		entry.level = -1;
+
+		if (entry.deadline <= now) {
+		    if (last == null)
+			expired = entry;
+		    else
+			last.next = entry;
+		    last = entry;
+		}
+		else {
+		    insert(entry);
+		}
+
+		entry = next;
+	    }
+	}
+
+	if (time > now)
+	    now = time;
+
+	return expired;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    static void selfTest() {
+	TimingWheel wheel = new TimingWheel(0);
+
+	// any number of entries may share a deadline
+	Entry[] same = new Entry[3];
+	for (int i=0; i<same.length; i++) {
+	    same[i] = new Entry();
+	    wheel.schedule(same[i], 5);
+	}
+
+	// deadlines stored at higher levels of the wheel
+	Entry near = new Entry(), far = new Entry(), cancelled = new Entry();
+	wheel.schedule(near, 64);
+	wheel.schedule(cancelled, 4099);
+	wheel.schedule(far, 1L << 40);
+
+	Lib.assertTrue(wheel.advance(4) == null);
+	Lib.assertTrue(countExpired(wheel.advance(5), 5) == same.length);
+
+	Lib.assertTrue(wheel.cancel(cancelled));
+	Lib.assertTrue(!wheel.cancel(cancelled));
+	Lib.assertTrue(!wheel.cancel(same[0]));
+
+	Entry expired = wheel.advance(1000);
+	Lib.assertTrue(expired == near && expired.next == null);
+	Lib.assertTrue(wheel.advance((1L << 40) - 1) == null);
+	expired = wheel.advance(1L << 41);
+	Lib.assertTrue(expired == far && expired.next == null);
+
+	// entries expiring together come out in order of deadline, and a
+	// deadline already passed expires on the next advance
+	long now = 1L << 41;
+	long[] deadlines = { now+300, now+100, now+200, now-50 };
+	for (int i=0; i<deadlines.length; i++)
+	    wheel.schedule(new Entry(), deadlines[i]);
+
+	Lib.assertTrue(countExpired(wheel.advance(now+1), now+1) == 1);
+	Lib.assertTrue(countExpired(wheel.advance(now+1000), now+300) == 3);
+    }
+
+    /**
+     * Count a list of expired entries, checking that they are in order of
+     * deadline and none expires after <i>time</i>.
+     */
+    private static int countExpired(Entry expired, long time) {
+	int count = 0;
+	long last = Long.MIN_VALUE;
+	for (Entry entry=expired; entry!=null; entry=entry.next) {
+	    Lib.assertTrue(entry.deadline >= last && entry.deadline <= time);
+	    last = entry.deadline;
+	    count++;
+	}
+	return count;
+    }
+
+    private void insert(Entry entry) {
+	int level = (63 - Long.numberOfLeadingZeros(entry.deadline ^ now)) /
+	    bitsPerLevel;
+	int slot = (int) (entry.deadline >>> (level*bitsPerLevel)) & slotMask;
+
+	entry.level = level;
+	entry.slot = slot;
+	entry.prev = null;
+	entry.next = heads[level][slot];
+	if (entry.next != null)
+	    entry.next.prev = entry;
+	heads[level][slot] = entry;
+	occupied[level] |= 1L << slot;
+    }
+
+    /**
+     * An entry in a timing wheel.
+     */
+    static class Entry {
+	/** The time at which this entry expires. */
+	long deadline;
+
+	private int level = -1;
+	private int slot;
+	private Entry prev = null;
+	/** The next entry in the same slot, or in the list of expired entries. */
+	Entry next = null;
+    }
+
+    private static final int bitsPerLevel = 6;
+    private static final int slotsPerLevel = 1 << bitsPerLevel;
+    private static final int slotMask = slotsPerLevel - 1;
+    private static final int numLevels = (64 + bitsPerLevel - 1) / bitsPerLevel;
+
+    private long now;
+    private Entry[][] heads = new Entry[numLevels][slotsPerLevel];
+    private long[] occupied = new long[numLevels];
+}
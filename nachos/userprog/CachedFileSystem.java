@@ -0,0 +1,548 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps recently used file blocks in a kernel buffer
+ * cache, in front of another file system.
+ *
+ * <p>
+ * Every open of the same name shares one <i>node</i>, which holds the
+ * underlying <tt>OpenFile</tt>, the file's length, and the file's cached
+ * blocks. Blocks are <tt>blockSize</tt> bytes and come from a fixed pool,
+ * recycled with the clock algorithm. Writes only dirty the cached block.
+ * Dirty blocks are written back when they are evicted, when the last open
+ * of their file is closed, and periodically by a flusher thread woken by
+ * the alarm. A read that continues where the previous read on the same
+ * <tt>OpenFile</tt> stopped also asks a read-ahead thread to load the block
+ * after it. The read-ahead thread reserves the block and then reads it
+ * without holding the cache lock, so other reads proceed meanwhile; only
+ * a read of that very block waits for it.
+ *
+ * <p>
+ * Nodes also serve as a cache of name lookups. When the last open of a file
+ * is closed, its node is kept, with its underlying file still open and its
+ * blocks still cached, among the most recently used idle nodes, so that
+ * opening it again does not reach the underlying file system. Since the
+ * underlying file system limits how many files are open at once, idle
+ * nodes are closed, least recently used first, whenever it refuses to open
+ * a file. Removing a file that is still open is deferred until its last
+ * close; until then, opens of the name fail.
+ *
+ * <p>
+ * The pool size, the flush period (in ticks) and the number of idle nodes
+ * are read from the <tt>CachedFileSystem.blocks</tt>,
+ * <tt>CachedFileSystem.flushInterval</tt> and
+ * <tt>CachedFileSystem.idleFiles</tt> configuration keys.
+ */
+public class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new buffer cache in front of the specified file system, and
+     * start its flusher and read-ahead threads.
+     *
+     * @param	fileSystem	the file system holding the files.
+     */
+    public CachedFileSystem(FileSystem fileSystem) {
+	this.fileSystem = fileSystem;
+
+	int numBlocks = Config.getInteger("CachedFileSystem.blocks", 64);
+	flushInterval = Config.getInteger("CachedFileSystem.flushInterval",
+					  100000);
+	maxIdle = Config.getInteger("CachedFileSystem.idleFiles", 8);
+	Lib.assertTrue(numBlocks > 0 && flushInterval > 0 && maxIdle >= 0);
+
+	blocks = new Block[numBlocks];
+	for (int i=0; i<numBlocks; i++)
+	    blocks[i] = new Block();
+
+	new KThread(new Runnable() {
+		public void run() { flushLoop(); }
+	    }).setName("buffer cache flusher").fork();
+	new KThread(new Runnable() {
+		public void run() { readAheadLoop(); }
+	    }).setName("buffer cache read-ahead").fork();
+    }
+
+    /**
+     * Open a file, sharing the node of any other open or recently closed
+     * file of the same name.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	<tt>true</tt> to create the file if it does not
+     *				exist, and truncate it to length zero.
+     * @return	the open file, or <tt>null</tt> if it could not be opened.
+     */
+    public OpenFile open(String name, boolean truncate) {
+	cacheLock.acquire();
+
+	Node node = nodes.get(name);
+	if (node != null && node.removed) {
+	    cacheLock.release();
+	    return null;
+	}
+
+	if (node == null) {
+	    OpenFile file = openUnderlying(name, truncate);
+	    if (file == null) {
+		cacheLock.release();
+		return null;
+	    }
+
+	    node = new Node(name, file);
+	    nodes.put(name, node);
+	}
+	else if (truncate) {
+	    OpenFile file = openUnderlying(name, true);
+	    if (file == null) {
+		cacheLock.release();
+		return null;
+	    }
+	    file.close();
+
+	    node.discard();
+	    node.length = 0;
+	}
+
+	if (node.opens++ == 0)
+	    idle.remove(node);
+
+	cacheLock.release();
+	return new CachedFile(node);
+    }
+
+    /**
+     * Open a file of the underlying file system. Idle nodes keep their files
+     * open and may have used up the files it allows open at once, so if the
+     * open fails, idle nodes are closed, least recently used first, until it
+     * succeeds or none is left. Called with <tt>cacheLock</tt> held.
+     *
+     * @param	name		the name of the file.
+     * @param	truncate	<tt>true</tt> to create or truncate the file.
+     * @return	the open file, or <tt>null</tt> if it could not be opened.
+     */
+    private OpenFile openUnderlying(String name, boolean truncate) {
+	OpenFile file = fileSystem.open(name, truncate);
+	while (file == null && !idle.isEmpty()) {
+	    idle.removeFirst().close();
+	    file = fileSystem.open(name, truncate);
+	}
+
+	return file;
+    }
+
+    /**
+     * Remove a file. If the file is open, it is only marked, and removed
+     * when it is last closed.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was removed or marked.
+     */
+    public boolean remove(String name) {
+	cacheLock.acquire();
+
+	Node node = nodes.get(name);
+	if (node != null) {
+	    if (node.removed) {
+		cacheLock.release();
+		return false;
+	    }
+
+	    if (node.opens > 0) {
+		node.removed = true;
+		cacheLock.release();
+		return true;
+	    }
+
+	    idle.remove(node);
+	    node.close();
+	}
+
+	boolean removed = fileSystem.remove(name);
+	cacheLock.release();
+
+	return removed;
+    }
+
+    /**
+     * Write every dirty block back to its file.
+     */
+    public void flush() {
+	cacheLock.acquire();
+	for (int i=0; i<blocks.length; i++)
+	    blocks[i].writeBack();
+	cacheLock.release();
+    }
+
+    private void flushLoop() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(flushInterval);
+	    flush();
+	}
+    }
+
+    private void readAheadLoop() {
+	cacheLock.acquire();
+
+	while (true) {
+	    while (readAheadQueue.isEmpty())
+		readAheadWanted.sleep();
+
+	    ReadAhead request = readAheadQueue.removeFirst();
+	    Node node = request.node;
+	    int index = request.index;
+
+	    // a lone block is never tied up by read-ahead
+	    if (node.opens == 0 || index*blockSize >= node.length ||
+		node.blocks.containsKey(index) || blocks.length < 2)
+		continue;
+
+	    // reserve the block, then read it without holding the lock, so
+	    // that reads of other blocks need not wait; the extra open keeps
+	    // the node and its file from being closed meanwhile
+	    Block block = reserveBlock(node, index);
+	    block.loading = true;
+	    node.opens++;
+	    cacheLock.release();
+
+	    int read = node.file.read(index*blockSize, block.data, 0, blockSize);
+
+	    cacheLock.acquire();
+	    for (int i=Math.max(read, 0); i<blockSize; i++)
+		block.data[i] = 0;
+	    block.loading = false;
+	    blockLoaded.wakeAll();
+	    node.release();
+	}
+    }
+
+    /**
+     * Return the cached block of a file, taking the next block chosen by
+     * the clock if it is not cached, and waiting for the read-ahead thread
+     * if it is still loading the block. Called with <tt>cacheLock</tt> held.
+     *
+     * @param	node	the file.
+     * @param	index	the block number within the file.
+     * @param	load	<tt>false</tt> if the caller will overwrite the whole
+     *			block, so that it need not be read from the file.
+     * @return	the cached block.
+     */
+    private Block getBlock(Node node, int index, boolean load) {
+	Block block = node.blocks.get(index);
+	while (block != null && block.loading) {
+	    blockLoaded.sleep();
+	    // the block may have been discarded meanwhile
+	    block = node.blocks.get(index);
+	}
+
+	if (block == null) {
+	    block = reserveBlock(node, index);
+
+	    int read = 0;
+	    if (load) {
+		read = node.file.read(index*blockSize, block.data, 0, blockSize);
+		read = Math.max(read, 0);
+	    }
+	    for (int i=read; i<blockSize; i++)
+		block.data[i] = 0;
+	}
+
+	block.used = true;
+	return block;
+    }
+
+    /**
+     * Take the next block chosen by the clock, skipping any the read-ahead
+     * thread is loading, and attach it to a block of a file. Its contents
+     * are left for the caller to fill. Called with <tt>cacheLock</tt> held.
+     *
+     * @param	node	the file.
+     * @param	index	the block number within the file.
+     * @return	the block.
+     */
+    private Block reserveBlock(Node node, int index) {
+	Block block;
+	while (true) {
+	    block = blocks[clockHand];
+	    clockHand = (clockHand+1) % blocks.length;
+
+	    if (block.loading)
+		continue;
+	    if (!block.used)
+		break;
+	    block.used = false;
+	}
+
+	block.evict();
+	block.node = node;
+	block.index = index;
+	node.blocks.put(index, block);
+
+	return block;
+    }
+
+    /**
+     * The shared state of every open of one file.
+     */
+    private class Node {
+	Node(String name, OpenFile file) {
+	    this.name = name;
+	    this.file = file;
+	    this.length = Math.max(file.length(), 0);
+	}
+
+	/**
+	 * Write back every dirty block of this file.
+	 */
+	void flush() {
+	    for (Block block : blocks.values())
+		block.writeBack();
+	}
+
+	/**
+	 * Drop one open of this file. After the last, a removed file is
+	 * removed for good, and any other is kept idle with its blocks
+	 * written back.
+	 */
+	void release() {
+	    if (--opens > 0)
+		return;
+
+	    if (removed) {
+		close();
+		fileSystem.remove(name);
+	    }
+	    else {
+		// keep the node for the next open of the name
+		flush();
+		idle.add(this);
+		if (idle.size() > maxIdle)
+		    idle.removeFirst().close();
+	    }
+	}
+
+	/**
+	 * Give up every cached block, without writing back if the file was
+	 * removed, close the underlying file, and forget this node.
+	 */
+	void close() {
+	    if (removed)
+		discard();
+	    for (Block block : new LinkedList<Block>(blocks.values()))
+		block.evict();
+
+	    file.close();
+	    nodes.remove(name);
+	}
+
+	/**
+	 * Give up every cached block of this file without writing it back.
+	 */
+	void discard() {
+	    for (Block block : blocks.values()) {
+		block.dirty = false;
+		block.node = null;
+	    }
+	    blocks.clear();
+	}
+
+	String name;
+	OpenFile file;
+	/** The file's length, including data not yet written back. */
+	int length;
+	int opens = 0;
+	/** Set if the file was removed while open. */
+	boolean removed = false;
+	HashMap<Integer,Block> blocks = new HashMap<Integer,Block>();
+    }
+
+    /**
+     * A block of the cache.
+     */
+    private class Block {
+	/**
+	 * Write this block back to its file, if it is dirty.
+	 */
+	void writeBack() {
+	    if (node == null || !dirty)
+		return;
+
+	    int length = Math.min(blockSize, node.length - index*blockSize);
+	    if (length > 0)
+		node.file.write(index*blockSize, data, 0, length);
+	    dirty = false;
+	}
+
+	/**
+	 * Write this block back and detach it from its file.
+	 */
+	void evict() {
+	    if (node == null)
+		return;
+
+	    writeBack();
+	    node.blocks.remove(index);
+	    node = null;
+	}
+
+	Node node = null;
+	int index;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false;
+	boolean used = false;
+	/** Set while the read-ahead thread fills the block without the lock. */
+	boolean loading = false;
+    }
+
+    /**
+     * A block the read-ahead thread should load.
+     */
+    private class ReadAhead {
+	ReadAhead(Node node, int index) {
+	    this.node = node;
+	    this.index = index;
+	}
+
+	Node node;
+	int index;
+    }
+
+    /**
+     * An open file whose reads and writes go through the buffer cache.
+     */
+    private class CachedFile extends OpenFile {
+	CachedFile(Node node) {
+	    super(CachedFileSystem.this, node.name);
+	    this.node = node;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (node == null || pos < 0 || length < 0)
+		return -1;
+
+	    cacheLock.acquire();
+
+	    length = Math.min(length, node.length - pos);
+
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int n = Math.min(length-amount, blockSize-blockOffset);
+
+		Block block = getBlock(node, index, true);
+		System.arraycopy(block.data, blockOffset, buf, offset+amount, n);
+		amount += n;
+	    }
+
+	    // a read continuing the previous one is likely to be followed by
+	    // a read of the next block
+	    if (amount > 0 && pos == sequentialPos) {
+		int next = (pos+amount+blockSize-1) / blockSize;
+		if (next*blockSize < node.length &&
+		    !node.blocks.containsKey(next)) {
+		    readAheadQueue.add(new ReadAhead(node, next));
+		    readAheadWanted.wake();
+		}
+	    }
+	    sequentialPos = pos + Math.max(amount, 0);
+
+	    cacheLock.release();
+
+	    return Math.max(amount, 0);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (node == null || pos < 0 || length < 0)
+		return -1;
+
+	    cacheLock.acquire();
+
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int n = Math.min(length-amount, blockSize-blockOffset);
+
+		boolean whole = (blockOffset == 0 && n == blockSize);
+		Block block = getBlock(node, index,
+				       !whole && index*blockSize < node.length);
+		System.arraycopy(buf, offset+amount, block.data, blockOffset, n);
+		block.dirty = true;
+		amount += n;
+	    }
+
+	    node.length = Math.max(node.length, pos+length);
+
+	    cacheLock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return (node == null) ? -1 : node.length;
+	}
+
+	public void close() {
+	    cacheLock.acquire();
+
+	    if (node != null)
+		node.release();
+	    node = null;
+
+	    cacheLock.release();
+	}
+
+	public void seek(int pos) {
+	    position = pos;
+	}
+
+	public int tell() {
+	    return position;
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+	    int amount = read(position, buf, offset, length);
+	    if (amount > 0)
+		position += amount;
+	    return amount;
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+	    int amount = write(position, buf, offset, length);
+	    if (amount > 0)
+		position += amount;
+	    return amount;
+	}
+
+	private Node node;
+	private int position = 0;
+	/** Where a read must start to count as sequential. */
+	private int sequentialPos = -1;
+    }
+
+    private FileSystem fileSystem;
+    private HashMap<String,Node> nodes = new HashMap<String,Node>();
+    /** Nodes of files no longer open, least recently closed first. */
+    private LinkedList<Node> idle = new LinkedList<Node>();
+    private int maxIdle;
+
+    private Block[] blocks;
+    private int clockHand = 0;
+
+    private int flushInterval;
+    private LinkedList<ReadAhead> readAheadQueue =
+	new LinkedList<ReadAhead>();
+
+    private Lock cacheLock = new Lock();
+    private Condition2 readAheadWanted = new Condition2(cacheLock);
+    /** Woken when the read-ahead thread finishes loading a block. */
+    private Condition2 blockLoaded = new Condition2(cacheLock);
+
+    /** The number of bytes in a cache block. */
+    public static final int blockSize = 1024;
+}
@@ -0,0 +1,225 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * An executable file, shared by every process running it. The kernel keeps
+ * one <tt>Executable</tt> per file name, holding the parsed COFF file and the
+ * physical pages of its read-only sections. Each process running the file
+ * maps those pages instead of loading its own copy.
+ *
+ * <p>
+ * An executable is reference counted. When no process is running it, it
+ * stays cached, with its pages, among the few most recently used idle
+ * executables, so that running the same program again is cheap. The pages
+ * themselves can still be evicted under memory pressure, and are loaded
+ * again when next needed. Truncating or removing the file drops it from
+ * the cache.
+ */
+public class Executable {
+    private Executable(String name, Coff coff) {
+	this.name = name;
+	this.coff = coff;
+
+	int numPages = 0;
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    numPages = Math.max(numPages,
+				section.getFirstVPN() + section.getLength());
+	}
+
+	textFrames = new int[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    textFrames[vpn] = -1;
+    }
+
+    /**
+     * Return the executable with the specified name, opening and parsing it
+     * if it is not cached. The caller must call <tt>release()</tt> when it
+     * no longer uses the executable.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	the executable, or <tt>null</tt> if the file could not be
+     *		opened or is not a COFF file.
+     */
+    public static Executable open(String name) {
+	cacheLock.acquire();
+
+	Executable executable = cache.get(name);
+	if (executable != null) {
+	    if (executable.users++ == 0)
+		idle.remove(executable);
+
+	    cacheLock.release();
+	    return executable;
+	}
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    cacheLock.release();
+	    Lib.debug(dbgProcess, "\topen failed");
+	    return null;
+	}
+
+	try {
+	    executable = new Executable(name, new Coff(file));
+	}
+	catch (EOFException e) {
+	    file.close();
+	    cacheLock.release();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    return null;
+	}
+
+	executable.users = 1;
+	cache.put(name, executable);
+
+	cacheLock.release();
+	return executable;
+    }
+
+    /**
+     * Count one more user of this executable, such as a forked process.
+     */
+    public void retain() {
+	cacheLock.acquire();
+	Lib.assertTrue(users > 0);
+	users++;
+	cacheLock.release();
+    }
+
+    /**
+     * Count one less user of this executable. An executable with no users
+     * is kept idle; the least recently used idle executable beyond
+     * <tt>maxIdle</tt> is closed and its pages freed. An executable whose
+     * file has changed since it was cached is closed right away.
+     */
+    public void release() {
+	cacheLock.acquire();
+
+	Lib.assertTrue(users > 0);
+	if (--users == 0) {
+	    if (cache.get(name) != this) {
+		close();
+	    }
+	    else {
+		idle.add(this);
+		if (idle.size() > maxIdle)
+		    idle.removeFirst().close();
+	    }
+	}
+
+	cacheLock.release();
+    }
+
+    /**
+     * Return the parsed COFF file.
+     *
+     * @return	the COFF file of this executable.
+     */
+    public Coff getCoff() {
+	return coff;
+    }
+
+    /**
+     * Return the physical page holding a page of a read-only section,
+     * loading it the first time any process needs it, and map it into a
+     * process. The process must drop its mapping with
+     * <tt>UserKernel.freeFrame()</tt>. The caller must hold
+     * <tt>UserKernel.memoryLock</tt>.
+     *
+     * @param	section	the read-only section containing the page.
+     * @param	vpn	the virtual page number of the page.
+     * @param	process	the process mapping the page.
+     * @return	the physical page number of the shared page, or -1 if no
+     *		physical page could be found for it.
+     */
+    public int mapTextPage(CoffSection section, int vpn, UserProcess process) {
+	Lib.assertTrue(section.isReadOnly());
+
+	if (textFrames[vpn] < 0) {
+	    int ppn = UserKernel.allocateFrame();
+	    if (ppn < 0)
+		return -1;
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	    UserKernel.cacheFrame(ppn, this, vpn);
+	    textFrames[vpn] = ppn;
+	}
+
+	UserKernel.shareFrame(textFrames[vpn], process, vpn);
+	return textFrames[vpn];
+    }
+
+    /**
+     * Forget a cached read-only page whose physical page the kernel has
+     * evicted. Called by the kernel with <tt>UserKernel.memoryLock</tt>
+     * held; the page is loaded again the next time a process needs it.
+     *
+     * @param	vpn	the virtual page number of the evicted page.
+     */
+    public void evictTextPage(int vpn) {
+	textFrames[vpn] = -1;
+    }
+
+    /**
+     * Drop the executable cached for a file that is about to be truncated
+     * or removed, so that the next process running the file parses it
+     * again. An idle executable is closed at once, which also closes its
+     * file and lets a removal take effect; one still in use is closed when
+     * its last user releases it.
+     *
+     * @param	name	the name of the file.
+     */
+    public static void invalidate(String name) {
+	cacheLock.acquire();
+
+	Executable executable = cache.remove(name);
+	if (executable != null && executable.users == 0) {
+	    idle.remove(executable);
+	    executable.close();
+	}
+
+	cacheLock.release();
+    }
+
+    /**
+     * Drop this executable from the cache, free its pages, and close its
+     * file. Called with <tt>cacheLock</tt> held.
+     */
+    private void close() {
+	if (cache.get(name) == this)
+	    cache.remove(name);
+
+	UserKernel.memoryLock.acquire();
+	for (int vpn=0; vpn<textFrames.length; vpn++) {
+	    if (textFrames[vpn] >= 0)
+		UserKernel.uncacheFrame(textFrames[vpn]);
+	}
+	UserKernel.memoryLock.release();
+
+	coff.close();
+    }
+
+    private String name;
+    private Coff coff;
+    private int users = 0;
+    /** The physical page of each loaded read-only page, or -1. */
+    private int[] textFrames;
+
+    /** The number of executables kept after their last user is gone. */
+    private static final int maxIdle = 4;
+
+    private static HashMap<String,Executable> cache =
+	new HashMap<String,Executable>();
+    /** Executables with no users, least recently used first. */
+    private static LinkedList<Executable> idle = new LinkedList<Executable>();
+    private static Lock cacheLock = new Lock();
+
+    private static final char dbgProcess = 'a';
+}
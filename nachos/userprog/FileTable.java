@@ -0,0 +1,166 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A process's file descriptor table, mapping descriptors to entries of the
+ * kernel's open file table.
+ *
+ * <p>
+ * The table grows by doubling, up to <tt>maxDescriptors</tt>. A bitmap of
+ * the descriptors in use, one bit per descriptor, lets the lowest free
+ * descriptor be found a word at a time, and a hint records the lowest word
+ * that may have a free bit.
+ */
+public class FileTable {
+    /**
+     * Allocate a new, empty descriptor table.
+     */
+    public FileTable() {
+	files = new SharedFile[initialSize];
+	inUse = new long[initialSize/64];
+    }
+
+    /**
+     * Install an open file table entry at the lowest free descriptor. The
+     * reference held by the caller becomes the descriptor's.
+     *
+     * @param	file	the open file table entry.
+     * @return	the new descriptor, or -1 if the table is full.
+     */
+    public int add(SharedFile file) {
+	while (firstFreeWord < inUse.length && inUse[firstFreeWord] == -1L)
+	    firstFreeWord++;
+
+	if (firstFreeWord == inUse.length) {
+	    if (files.length == maxDescriptors)
+		return -1;
+	    grow();
+	}
+
+	int fd = firstFreeWord*64 +
+	    Long.numberOfTrailingZeros(~inUse[firstFreeWord]);
+	inUse[firstFreeWord] |= 1L << (fd%64);
+	files[fd] = file;
+
+	return fd;
+    }
+
+    /**
+     * Return the open file table entry of a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the entry, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    public SharedFile get(int fd) {
+	if (fd < 0 || fd >= files.length)
+	    return null;
+
+	return files[fd];
+    }
+
+    /**
+     * Return the underlying file of a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    public OpenFile getFile(int fd) {
+	SharedFile file = get(fd);
+	return (file == null) ? null : file.getFile();
+    }
+
+    /**
+     * Close a descriptor.
+     *
+     * @param	fd	the descriptor.
+     * @return	<tt>false</tt> if <i>fd</i> was not open.
+     */
+    public boolean close(int fd) {
+	SharedFile file = get(fd);
+	if (file == null)
+	    return false;
+
+	files[fd] = null;
+	inUse[fd/64] &= ~(1L << (fd%64));
+	firstFreeWord = Math.min(firstFreeWord, fd/64);
+
+	file.release();
+	return true;
+    }
+
+    /**
+     * Make the lowest free descriptor refer to the same open file table
+     * entry as <i>fd</i>.
+     *
+     * @param	fd	the descriptor to duplicate.
+     * @return	the new descriptor, or -1 if <i>fd</i> is not open or the
+     *		table is full.
+     */
+    public int dup(int fd) {
+	SharedFile file = get(fd);
+	if (file == null)
+	    return -1;
+
+	file.retain();
+	int newFd = add(file);
+	if (newFd < 0)
+	    file.release();
+
+	return newFd;
+    }
+
+    /**
+     * Close every descriptor.
+     */
+    public void closeAll() {
+	for (int fd=0; fd<files.length; fd++) {
+	    if (files[fd] != null)
+		close(fd);
+	}
+    }
+
+    /**
+     * Return a new table with the same descriptors, referring to the same
+     * open file table entries.
+     *
+     * @return	the copy.
+     */
+    public FileTable copy() {
+	FileTable table = new FileTable();
+	while (table.files.length < files.length)
+	    table.grow();
+
+	for (int fd=0; fd<files.length; fd++) {
+	    if (files[fd] != null)
+		files[fd].retain();
+	}
+
+	System.arraycopy(files, 0, table.files, 0, files.length);
+	System.arraycopy(inUse, 0, table.inUse, 0, inUse.length);
+	table.firstFreeWord = firstFreeWord;
+
+	return table;
+    }
+
+    private void grow() {
+	SharedFile[] newFiles = new SharedFile[files.length*2];
+	long[] newInUse = new long[inUse.length*2];
+	System.arraycopy(files, 0, newFiles, 0, files.length);
+	System.arraycopy(inUse, 0, newInUse, 0, inUse.length);
+
+	files = newFiles;
+	inUse = newInUse;
+    }
+
+    private SharedFile[] files;
+    private long[] inUse;
+    /** No word of <tt>inUse</tt> below this one has a free bit. */
+    private int firstFreeWord = 0;
+
+    private static final int initialSize = 64;
+    /** The most descriptors a process may have open. */
+    public static final int maxDescriptors = 1024;
+}
@@ -0,0 +1,61 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An entry in the kernel's open file table: an <tt>OpenFile</tt> shared by
+ * every descriptor that refers to it, whether in one process (through
+ * <tt>dup</tt>) or in several (through <tt>exec</tt> and <tt>fork</tt>).
+ * Descriptors sharing an entry also share its file position. The underlying
+ * file is closed when the last descriptor referring to it is closed.
+ */
+public class SharedFile {
+    /**
+     * Allocate a new open file table entry, referred to by one descriptor.
+     *
+     * @param	file	the open file.
+     */
+    public SharedFile(OpenFile file) {
+	this.file = file;
+    }
+
+    /**
+     * Return the underlying open file.
+     *
+     * @return	the open file.
+     */
+    public OpenFile getFile() {
+	return file;
+    }
+
+    /**
+     * Count one more descriptor referring to this entry.
+     */
+    public void retain() {
+	refLock.acquire();
+	Lib.assertTrue(refs > 0);
+	refs++;
+	refLock.release();
+    }
+
+    /**
+     * Count one less descriptor referring to this entry, closing the file
+     * when none is left.
+     */
+    public void release() {
+	refLock.acquire();
+	Lib.assertTrue(refs > 0);
+	boolean last = (--refs == 0);
+	refLock.release();
+
+	if (last)
+	    file.close();
+    }
+
+    private OpenFile file;
+    private int refs = 1;
+
+    private static Lock refLock = new Lock();
+}
@@ -0,0 +1,129 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A swap file, holding copies of user pages that have been evicted from
+ * physical memory. The file is divided into page-sized slots. Pages move
+ * directly between a slot and physical memory, without an intermediate
+ * buffer.
+ *
+ * <p>
+ * A slot may be shared by several processes holding the same page, and is
+ * reference counted. Freed slots are kept on a stack and reused before the
+ * file is grown, so allocating, sharing and freeing a slot take constant
+ * time.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to create.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "cannot create swap file " + name);
+    }
+
+    /**
+     * Allocate an unused slot, with one reference.
+     *
+     * @return	the slot number.
+     */
+    public int allocate() {
+	int slot;
+	if (numFreeSlots > 0) {
+	    slot = freeSlots[--numFreeSlots];
+	}
+	else {
+	    slot = numSlots++;
+	    if (slot == slotRefs.length) {
+		int[] newSlotRefs = new int[slotRefs.length*2];
+		System.arraycopy(slotRefs, 0, newSlotRefs, 0, slot);
+		slotRefs = newSlotRefs;
+	    }
+	}
+
+	slotRefs[slot] = 1;
+	return slot;
+    }
+
+    /**
+     * Add a reference to an allocated slot.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void share(int slot) {
+	Lib.assertTrue(slotRefs[slot] > 0);
+	slotRefs[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot, releasing it once the last reference is
+     * gone.
+     *
+     * @param	slot	the slot to release.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(slotRefs[slot] > 0);
+	if (--slotRefs[slot] > 0)
+	    return;
+
+	if (numFreeSlots == freeSlots.length) {
+	    int[] newFreeSlots = new int[freeSlots.length*2];
+	    System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+	    freeSlots = newFreeSlots;
+	}
+
+	freeSlots[numFreeSlots++] = slot;
+    }
+
+    /**
+     * Copy a physical page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to copy.
+     */
+    public void write(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int written = file.write(slot*pageSize, memory, ppn*pageSize, pageSize);
+	Lib.assertTrue(written == pageSize, "swap file write failed");
+    }
+
+    /**
+     * Copy a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    public void read(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int read = file.read(slot*pageSize, memory, ppn*pageSize, pageSize);
+	Lib.assertTrue(read == pageSize, "swap file read failed");
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+
+    private int numSlots = 0;
+    /** The number of references to each slot. */
+    private int[] slotRefs = new int[16];
+    private int[] freeSlots = new int[16];
+    private int numFreeSlots = 0;
+
+    private static final int pageSize = Processor.pageSize;
+}
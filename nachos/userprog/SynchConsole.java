@@ -7,6 +7,20 @@ import nachos.userprog.*;
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Output is queued in a ring buffer, which the send interrupt drains one
+ * byte at a time. Writers only block while the buffer is full, and a
+ * whole write is queued under one acquisition of the write lock, so that
+ * concurrent writes are not interleaved.
+ *
+ * <p>
+ * Input is queued in another ring buffer, filled by the receive interrupt.
+ * A blocking read returns as soon as input is available. In canonical (line)
+ * mode, input becomes available a whole line at a time, a read returns at
+ * most one line, and a backspace or delete erases the last byte of the line
+ * being typed. Canonical mode is set by the <tt>SynchConsole.canonical</tt>
+ * configuration key, or by <tt>setCanonical()</tt>.
  */
 public class SynchConsole {
     /**
@@ -24,6 +38,23 @@ public class SynchConsole {
 	    public void run() { sendInterrupt(); }
 	};
 	console.setInterruptHandlers(receiveHandler, sendHandler);
+
+	canonical = Config.getBoolean("SynchConsole.canonical", false);
+    }
+
+    /**
+     * Turn canonical (line) mode on or off.
+     *
+     * @param	canonical	<tt>true</tt> to deliver input a line at a time.
+     */
+    public void setCanonical(boolean canonical) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	this.canonical = canonical;
+	if (readerCanProceed())
+	    wakeReader();
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -37,24 +68,51 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
-	boolean intStatus = Machine.interrupt().disable();	
-	readLock.acquire();
+	byte[] buf = new byte[1];
+	int amount = readBytes(buf, 0, 1, block);
 
-	if (block || charAvailable) {
-	    charAvailable = false;
-	    readWait.P();
+	return (amount == 0) ? -1 : (buf[0] & 0xFF);
+    }
 
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
+    /**
+     * Read received bytes. If no input is available, blocks until some is,
+     * or returns immediately, depending on the value of <i>block</i>. In
+     * canonical mode, stops after the first newline.
+     *
+     * @param	buf	the array to store the bytes in.
+     * @param	offset	the first byte to store.
+     * @param	length	the most bytes to read.
+     * @param	block	<tt>true</tt> to wait for input if none is available.
+     * @return	the number of bytes read.
+     */
+    public int readBytes(byte[] buf, int offset, int length, boolean block) {
+	readLock.acquire();
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (block && length > 0 && !inputReady()) {
+	    dataWanted = true;
+	    dataWait.P();
 	}
-	else {
-	    value = -1;
+
+	int amount = 0;
+	if (inputReady()) {
+	    while (amount < length && inCount > 0) {
+		byte value = inBuffer[inHead];
+		inHead = (inHead + 1) % inBuffer.length;
+		inCount--;
+
+		buf[offset + amount++] = value;
+		if (value == '\n') {
+		    completeLines--;
+		    if (canonical)
+			break;
+		}
+	    }
 	}
 
-	readLock.release();
 	Machine.interrupt().restore(intStatus);
-	return value;
+	readLock.release();
+	return amount;
     }
 
     /**
@@ -67,22 +125,110 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	int value = console.readByte();
+	if (value == -1)
+	    return;
+
+	if (canonical && (value == '\b' || value == 0x7F)) {
+	    // erase the last byte of the line being typed, if there is one
+	    int last = (inHead + inCount - 1 + inBuffer.length) % inBuffer.length;
+	    if (inCount > 0 && inBuffer[last] != '\n')
+		inCount--;
+	    return;
+	}
+
+	// input arriving while the buffer is full is dropped
+	if (inCount == inBuffer.length)
+	    return;
+
+	inBuffer[(inHead + inCount) % inBuffer.length] = (byte) value;
+	inCount++;
+	if (value == '\n')
+	    completeLines++;
+
+	if (readerCanProceed())
+	    wakeReader();
+    }
+
+    /**
+     * Test if a read can return input now. In canonical mode that takes a
+     * whole line, or a full buffer, which could otherwise never complete a
+     * line. Called with interrupts disabled.
+     */
+    private boolean inputReady() {
+	if (canonical)
+	    return (completeLines > 0 || inCount == inBuffer.length);
+	else
+	    return (inCount > 0);
+    }
+
+    private boolean readerCanProceed() {
+	return (dataWanted && inputReady());
+    }
+
+    private void wakeReader() {
+	dataWanted = false;
+	dataWait.V();
     }
 
     /**
-     * Send a byte. Blocks until the send is complete.
+     * Queue a byte to be sent. Blocks only while the output buffer is full.
      *
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    /**
+     * Queue bytes to be sent, in order and without bytes from other writes
+     * in between. Blocks only while the output buffer is full.
+     *
+     * @param	buf	the array holding the bytes.
+     * @param	offset	the first byte to send.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
 	writeLock.acquire();
-	console.writeByte(value);
-	writeWait.P();
+	boolean intStatus = Machine.interrupt().disable();
+
+	int amount = 0;
+	while (amount < length) {
+	    while (outCount == outBuffer.length) {
+		spaceWanted = true;
+		spaceWait.P();
+	    }
+
+	    // copy as much as fits, in at most two pieces around the wrap
+	    int tail = (outHead + outCount) % outBuffer.length;
+	    int n = Math.min(length - amount, outBuffer.length - outCount);
+	    n = Math.min(n, outBuffer.length - tail);
+	    System.arraycopy(buf, offset+amount, outBuffer, tail, n);
+	    outCount += n;
+	    amount += n;
+
+	    if (!sending)
+		sendNext();
+	}
+
+	Machine.interrupt().restore(intStatus);
 	writeLock.release();
     }
 
+    /**
+     * Wait until every queued byte has been sent.
+     */
+    public void flush() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (sending) {
+	    drainWanted = true;
+	    drainWait.P();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -93,16 +239,57 @@ public class SynchConsole {
     }
 
     private void sendInterrupt() {
-	writeWait.V();
+	if (outCount > 0) {
+	    sendNext();
+	}
+	else {
+	    sending = false;
+	    if (drainWanted) {
+		drainWanted = false;
+		drainWait.V();
+	    }
+	}
+
+	// let a blocked writer refill half the buffer at once
+	if (spaceWanted && outCount <= outBuffer.length/2) {
+	    spaceWanted = false;
+	    spaceWait.V();
+	}
     }
 
-    private boolean charAvailable = false;
+    /**
+     * Hand the first queued byte to the console. Called with interrupts
+     * disabled.
+     */
+    private void sendNext() {
+	sending = true;
+	console.writeByte(outBuffer[outHead]);
+	outHead = (outHead + 1) % outBuffer.length;
+	outCount--;
+    }
+
+    private byte[] inBuffer = new byte[inputBufferSize];
+    private int inHead = 0, inCount = 0;
+    /** The number of newlines in the input buffer. */
+    private int completeLines = 0;
+    private boolean canonical;
+    private boolean dataWanted = false;
+    private Semaphore dataWait = new Semaphore(0);
 
     private SerialConsole console;
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
-    private Semaphore readWait = new Semaphore(0);
-    private Semaphore writeWait = new Semaphore(0);
+
+    private byte[] outBuffer = new byte[outputBufferSize];
+    private int outHead = 0, outCount = 0;
+    /** Set while the console is sending a byte. */
+    private boolean sending = false;
+    private boolean spaceWanted = false, drainWanted = false;
+    private Semaphore spaceWait = new Semaphore(0);
+    private Semaphore drainWait = new Semaphore(0);
+
+    private static final int inputBufferSize = 256;
+    private static final int outputBufferSize = 256;
 
     private class File extends OpenFile {
 	File(boolean canRead, boolean canWrite) {
@@ -120,24 +307,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.readBytes(buf, offset, length, true);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
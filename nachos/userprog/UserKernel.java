@@ -16,13 +16,34 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, the swap file
+     * and the buffer cache, puts every physical page on the free list, and
+     * sets the processor's exception handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	freeFrames = new int[numPhysPages];
+	frameRefs = new int[numPhysPages];
+	frameMappings = new Mapping[numPhysPages];
+	frameExecutable = new Executable[numPhysPages];
+	frameVPN = new int[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    freeFrames[i] = numPhysPages-1-i;
+	numFreeFrames = numPhysPages;
+	memoryLock = new Lock();
+
+	// executables, the swap file and user files all live in the file
+	// system
+	Lib.assertTrue(fileSystem != null, "user programs need a file system");
+
+	swap = new SwapFile(swapFileName);
+
+	// user file I/O goes through the buffer cache; the swap file does not
+	fileSystem = bufferCache = new CachedFileSystem(fileSystem);
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +82,404 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Test if a file name belongs to the kernel, so that user programs may
+     * not create, open or remove it. The swap file shares the file system
+     * with user files, and truncating it would lose evicted pages.
+     *
+     * @param	name	the file name.
+     * @return	<tt>true</tt> if the name is reserved for the kernel.
+     */
+    public static boolean isReservedFile(String name) {
+	return name.equals(swapFileName);
+    }
+
+    /**
+     * Take a physical page off the free list. If no page is free, evict one
+     * chosen by <tt>evictFrame()</tt>. The caller holds the only reference
+     * to the page, which cannot be evicted until it is handed to
+     * <tt>mapFrame()</tt>. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @return	the physical page number of the allocated page, or -1 if every
+     *		page is in use and none can be evicted.
+     */
+    public static int allocateFrame() {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = (numFreeFrames > 0) ? freeFrames[--numFreeFrames] :
+	    evictFrame();
+	if (ppn < 0) {
+	    Lib.debug(dbgProcess, "\tno physical page can be evicted");
+	    return -1;
+	}
+	frameRefs[ppn] = 1;
+
+	return ppn;
+    }
+
+    /**
+     * Turn the caller's reference to a physical page, as returned by
+     * <tt>allocateFrame()</tt>, into a mapping of the page at the specified
+     * virtual page of a process, making the page a candidate for eviction.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process whose page table maps the page.
+     * @param	vpn	the virtual page number it is mapped at.
+     */
+    public static void mapFrame(int ppn, UserProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefs[ppn] > 0);
+
+	frameVPN[ppn] = vpn;
+	frameMappings[ppn] = new Mapping(process, frameMappings[ppn]);
+    }
+
+    /**
+     * Map an allocated physical page into one more process, at the same
+     * virtual page as its other mappings. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number of the page to share.
+     * @param	process	the process whose page table maps the page.
+     * @param	vpn	the virtual page number it is mapped at.
+     */
+    public static void shareFrame(int ppn, UserProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefs[ppn] > 0);
+	Lib.assertTrue(frameMappings[ppn] == null || frameVPN[ppn] == vpn);
+
+	frameRefs[ppn]++;
+	mapFrame(ppn, process, vpn);
+    }
+
+    /**
+     * Turn the caller's reference to a physical page, as returned by
+     * <tt>allocateFrame()</tt>, into the hold of an executable caching one
+     * of its read-only pages there. Unlike other references that are not
+     * mappings, this one does not keep the page from being evicted; the
+     * executable is told with <tt>evictTextPage()</tt> when it is. The
+     * caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn		the physical page number.
+     * @param	executable	the executable caching the page.
+     * @param	vpn		the virtual page number of the cached page.
+     */
+    public static void cacheFrame(int ppn, Executable executable, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefs[ppn] > 0 && frameExecutable[ppn] == null);
+
+	frameExecutable[ppn] = executable;
+	frameVPN[ppn] = vpn;
+    }
+
+    /**
+     * Drop an executable's hold on a physical page caching one of its
+     * pages, as recorded by <tt>cacheFrame()</tt>. The caller must hold
+     * <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number of the page to release.
+     */
+    public static void uncacheFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameExecutable[ppn] != null);
+
+	frameExecutable[ppn] = null;
+	releaseFrame(ppn);
+    }
+
+    /**
+     * Add a reference to an allocated physical page that keeps it from
+     * being evicted, for as long as the caller needs its contents. The
+     * caller must hold <tt>memoryLock</tt>, and drops the reference with
+     * <tt>releaseFrame()</tt>.
+     *
+     * @param	ppn	the physical page number of the page to pin.
+     */
+    public static void pinFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefs[ppn] > 0);
+
+	frameRefs[ppn]++;
+    }
+
+    /**
+     * Test if a physical page has more than one reference.
+     *
+     * @param	ppn	the physical page number of the page.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    public static boolean isFrameShared(int ppn) {
+	return (frameRefs[ppn] > 1);
+    }
+
+    /**
+     * Remove a process's mapping of a physical page and drop its reference.
+     * Takes time proportional to the number of processes sharing the page.
+     * The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number of the page to free.
+     * @param	process	the process that no longer maps the page.
+     */
+    public static void freeFrame(int ppn, UserProcess process) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Mapping prev = null, mapping = frameMappings[ppn];
+	while (mapping.process != process) {
+	    prev = mapping;
+	    mapping = mapping.next;
+	}
+	if (prev == null)
+	    frameMappings[ppn] = mapping.next;
+	else
+	    prev.next = mapping.next;
+
+	releaseFrame(ppn);
+    }
+
+    /**
+     * Drop a reference to a physical page that is not a mapping, putting
+     * the page back on the free list once the last reference is gone. Takes
+     * constant time. The caller must hold <tt>memoryLock</tt>.
+     *
+     * @param	ppn	the physical page number of the page to release.
+     */
+    public static void releaseFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(frameRefs[ppn] > 0);
+
+	if (--frameRefs[ppn] == 0) {
+	    Lib.assertTrue(frameMappings[ppn] == null &&
+			   frameExecutable[ppn] == null);
+	    freeFrames[numFreeFrames++] = ppn;
+	}
+    }
+
+    /**
+     * Choose a physical page with the clock (second chance) algorithm and
+     * have every process mapping it page it out. The hand sweeps over the
+     * physical pages, clearing the used bits of each mapped page it passes,
+     * and stops at the first one none of whose mappings has its used bit
+     * set. A page shared by several processes is evicted from all of them at
+     * once; the first one to write it out leaves a swap slot the others
+     * share. A cached read-only page is dropped from its executable as well,
+     * and one no process maps is evicted as soon as the hand reaches it.
+     * Pages with other references, such as pages still being filled or
+     * copied from, are skipped.
+     *
+     * @return	the physical page number of the evicted page, or -1 if no
+     *		page can be evicted.
+     */
+    private static int evictFrame() {
+	int numPhysPages = frameRefs.length;
+
+	// bring used bits up to date without dropping any translation
+	syncTLB();
+
+	// the first sweep may only clear used bits; the second then stops at
+	// the first page that can be evicted, if there is one
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = clockHand;
+	    clockHand = (clockHand+1) % numPhysPages;
+
+	    int holds = numMappings(ppn);
+	    if (frameExecutable[ppn] != null)
+		holds++;
+	    if (frameRefs[ppn] == 0 || frameRefs[ppn] != holds)
+		continue;
+
+	    int vpn = frameVPN[ppn];
+	    boolean used = false;
+	    for (Mapping m=frameMappings[ppn]; m!=null; m=m.next) {
+		TranslationEntry entry = m.process.pageTable[vpn];
+		used |= entry.used;
+		entry.used = false;
+	    }
+	    if (used)
+		continue;
+
+	    // only the victim's translations have to leave the TLB
+	    int slot = -1;
+	    for (Mapping m=frameMappings[ppn]; m!=null; m=m.next) {
+		invalidateTLB(m.process, vpn);
+		slot = m.process.pageOut(vpn, slot);
+	    }
+	    frameMappings[ppn] = null;
+
+	    if (frameExecutable[ppn] != null) {
+		frameExecutable[ppn].evictTextPage(vpn);
+		frameExecutable[ppn] = null;
+	    }
+	    return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Count the processes mapping a physical page.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the number of mappings of the page.
+     */
+    private static int numMappings(int ppn) {
+	int count = 0;
+	for (Mapping m=frameMappings[ppn]; m!=null; m=m.next)
+	    count++;
+	return count;
+    }
+
+    /**
+     * One process's mapping of a physical page, in the list of all the
+     * processes mapping it.
+     */
+    private static class Mapping {
+	Mapping(UserProcess process, Mapping next) {
+	    this.process = process;
+	    this.next = next;
+	}
+
+	UserProcess process;
+	Mapping next;
+    }
+
+    /**
+     * Make the TLB translate for the specified process. The TLB is flushed
+     * only if it holds another process's entries, so switching between a
+     * process's thread and kernel threads keeps it intact.
+     *
+     * @param	process	the process about to run.
+     */
+    public static void switchTLB(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tlbProcess != process) {
+	    flushTLB();
+	    tlbProcess = process;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Load a translation entry of the current process into the TLB,
+     * replacing an invalid entry if there is one, or else the next entry in
+     * round-robin order.
+     *
+     * @param	entry	the page table entry to load.
+     */
+    public static void refillTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	boolean intStatus = Machine.interrupt().disable();
+
+	int victim = -1;
+	for (int i=0; i<processor.getTLBSize() && victim < 0; i++) {
+	    if (!processor.readTLBEntry(i).valid)
+		victim = i;
+	}
+	if (victim < 0) {
+	    victim = tlbHand;
+	    tlbHand = (tlbHand+1) % processor.getTLBSize();
+	    syncTLBEntry(victim, true);
+	}
+
+	TranslationEntry copy = new TranslationEntry(entry);
+	copy.used = copy.dirty = false;
+	processor.writeTLBEntry(victim, copy);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop the TLB entry for one page of a process, if the TLB holds it.
+     *
+     * @param	process	the process.
+     * @param	vpn	the virtual page number.
+     */
+    public static void invalidateTLB(UserProcess process, int vpn) {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tlbProcess == process) {
+	    for (int i=0; i<processor.getTLBSize(); i++) {
+		TranslationEntry entry = processor.readTLBEntry(i);
+		if (entry.valid && entry.vpn == vpn)
+		    syncTLBEntry(i, true);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Drop every TLB entry of a process, if the TLB holds its entries.
+     *
+     * @param	process	the process.
+     */
+    public static void invalidateTLB(UserProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (tlbProcess == process)
+	    flushTLB();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry back to the page table
+     * entry it caches, and invalidate it.
+     */
+    private static void flushTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(i, true);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry back to the page table
+     * entry it caches, and clear them in the TLB, keeping every entry valid.
+     */
+    private static void syncTLB() {
+	Processor processor = Machine.processor();
+	if (!processor.hasTLB())
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++)
+	    syncTLBEntry(i, false);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void syncTLBEntry(int i, boolean invalidate) {
+	Processor processor = Machine.processor();
+	TranslationEntry cached = processor.readTLBEntry(i);
+	if (!cached.valid || tlbProcess == null)
+	    return;
+
+	TranslationEntry entry = tlbProcess.pageTable[cached.vpn];
+	if (entry.valid && entry.ppn == cached.ppn) {
+	    entry.used |= cached.used;
+	    entry.dirty |= cached.dirty;
+	}
+
+	cached.used = cached.dirty = false;
+	if (invalidate)
+	    cached.valid = false;
+	processor.writeTLBEntry(i, cached);
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -104,12 +523,61 @@ public class UserKernel extends ThreadedKernel {
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	if (bufferCache != null)
+	    bufferCache.flush();
+	console.flush();
+	swap.close();
+
 	super.terminate();
     }
 
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /**
+     * Serializes all changes to user page tables and physical pages,
+     * including paging to and from the swap file.
+     */
+    public static Lock memoryLock;
+
+    /** The buffer cache in front of the file system, if there is one. */
+    public static CachedFileSystem bufferCache = null;
+
+    /** The swap file holding evicted user pages. */
+    public static SwapFile swap;
+    private static final String swapFileName = "nachos.swp";
+
+    /** Stack of free physical page numbers. */
+    private static int[] freeFrames;
+    private static int numFreeFrames;
+    /**
+     * Number of references to each physical page: one per mapping, one for
+     * the executable caching the page, plus any held by the kernel while it
+     * fills or copies the page.
+     */
+    private static int[] frameRefs;
+    /**
+     * The processes mapping each physical page, or <tt>null</tt> if the page
+     * is free or not yet mapped, and the virtual page they all map it at.
+     */
+    private static Mapping[] frameMappings;
+    /**
+     * The executable caching its read-only page in each physical page, or
+     * <tt>null</tt>. The page is cached at the same virtual page it is
+     * mapped at.
+     */
+    private static Executable[] frameExecutable;
+    private static int[] frameVPN;
+    /** The next physical page the clock hand will look at. */
+    private static int clockHand = 0;
+
+    /** The process whose translations the TLB holds. */
+    private static UserProcess tlbProcess = null;
+    /** The next TLB entry to replace when none is invalid. */
+    private static int tlbHand = 0;
+
+    private static final char dbgProcess = 'a';
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
@@ -4,7 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -24,17 +25,12 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
-    
     globalLock.acquire();
-    PID = nextPID;
+    PID = nextPID++;
     globalLock.release();
     
-	fileTable[0] = UserKernel.console.openForReading();
-	fileTable[1] = UserKernel.console.openForWriting();
+	fileTable.add(new SharedFile(UserKernel.console.openForReading()));
+	fileTable.add(new SharedFile(UserKernel.console.openForWriting()));
     }
    
     /**
@@ -59,6 +55,10 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	globalLock.acquire();
+	runningProcesses++;
+	globalLock.release();
 	
 	new UThread(this).setName(name).fork();
 
@@ -74,10 +74,15 @@ public class UserProcess {
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. If the processor has a TLB, it is
+     * refilled on misses, and only needs flushing if another process last
+     * used it.
      */
     public void restoreState() {
-	Machine.processor().setPageTable(pageTable);
+	if (Machine.processor().hasTLB())
+	    UserKernel.switchTLB(this);
+	else
+	    Machine.processor().setPageTable(pageTable);
     }
 
     /**
@@ -137,18 +142,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset,
 				 int length) {
-	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return transferVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -180,16 +174,64 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 				  int length) {
+	return transferVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between the specified array and this process's virtual
+     * memory, one page fragment at a time. Each page is translated once, and
+     * its fragment is moved with a single <tt>System.arraycopy</tt> straight
+     * to or from physical memory. The page's used bit is set, and its dirty
+     * bit too when writing. The transfer stops at the first page that is not
+     * part of the address space, or, when writing, that is read-only.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	data	the array to transfer to or from.
+     * @param	offset	the first byte of the array to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	write	<tt>true</tt> to copy from the array into virtual
+     *			memory, <tt>false</tt> to copy the other way.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transferVirtualMemory(int vaddr, byte[] data, int offset,
+				      int length, boolean write) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
+
+	UserKernel.memoryLock.acquire();
 	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	int amount = 0;
+	while (amount < length) {
+	    int ppn = pageIn(vaddr+amount);
+	    if (ppn < 0)
+		break;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	    int vpn = Processor.pageFromAddress(vaddr+amount);
+	    TranslationEntry entry = pageTable[vpn];
+	    if (write && entry.readOnly) {
+		if (!breakCopyOnWrite(vpn))
+		    break;
+		ppn = entry.ppn;
+	    }
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int paddr = ppn*pageSize + pageOffset;
+	    int n = Math.min(length-amount, pageSize-pageOffset);
+
+	    if (write) {
+		System.arraycopy(data, offset+amount, memory, paddr, n);
+		entry.dirty = true;
+	    }
+	    else {
+		System.arraycopy(memory, paddr, data, offset+amount, n);
+	    }
+	    entry.used = true;
+
+	    amount += n;
+	}
+
+	UserKernel.memoryLock.release();
 
 	return amount;
     }
@@ -207,27 +249,18 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
+	executable = Executable.open(name);
+	if (executable == null)
 	    return false;
-	}
 
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
-	    Lib.debug(dbgProcess, "\tcoff load failed");
-	    return false;
-	}
+	coff = executable.getCoff();
 
 	// make sure the sections are contiguous and start at page 0
 	numPages = 0;
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    if (section.getFirstVPN() != numPages) {
-		coff.close();
+		executable.release();
 		Lib.debug(dbgProcess, "\tfragmented executable");
 		return false;
 	    }
@@ -243,7 +276,7 @@ public class UserProcess {
 	    argsSize += 4 + argv[i].length + 1;
 	}
 	if (argsSize > pageSize) {
-	    coff.close();
+	    executable.release();
 	    Lib.debug(dbgProcess, "\targuments too long");
 	    return false;
 	}
@@ -270,33 +303,47 @@ public class UserProcess {
 	
 	for (int i=0; i<argv.length; i++) {
 	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
+	    // pages are loaded on demand, so the writes fail if memory runs out
+	    if (writeVirtualMemory(entryOffset,stringOffsetBytes) != 4 ||
+		writeVirtualMemory(stringOffset, argv[i]) != argv[i].length ||
+		writeVirtualMemory(stringOffset + argv[i].length,
+				   new byte[] { 0 }) != 1) {
+		unloadSections();
+		Lib.debug(dbgProcess, "\tno memory for arguments");
+		return false;
+	    }
 	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
-	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-	    stringOffset += 1;
+	    stringOffset += argv[i].length + 1;
 	}
 
 	return true;
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Allocates memory for this process, and prepares the COFF sections to be
+     * loaded into memory. Copying the arguments in can still fail after this
+     * returns, if physical memory and swap run out; <tt>load()</tt> then
+     * calls <tt>unloadSections()</tt>.
+     *
+     * <p>
+     * Pages are loaded on demand: every page table entry starts out invalid,
+     * and <tt>pageIn()</tt> takes a physical page from the kernel and fills
+     * it from its COFF section, or with zeros for the stack and arguments,
+     * the first time it is touched. Physical pages are not set aside here;
+     * when memory runs out, the kernel evicts pages to the swap file.
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
-	    coff.close();
-	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
-	    return false;
-	}
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false,false,false,false);
+	copyOnWrite = new boolean[numPages];
+	swapSlot = new int[numPages];
+	Arrays.fill(swapSlot, -1);
 
-	// load sections
+	// remember which section backs each page
+	pageSection = new CoffSection[numPages];
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
@@ -306,20 +353,191 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		pageSection[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
 	    }
 	}
 	
 	return true;
     }
 
+    /**
+     * Make sure the page containing the specified virtual address is in
+     * physical memory, loading it from the swap file, its COFF section, or
+     * with zeros. The caller must hold <tt>UserKernel.memoryLock</tt>.
+     *
+     * @param	vaddr	the virtual address.
+     * @return	the physical page number of the page, or -1 if the address is
+     *		not part of this process's address space, or no physical page
+     *		could be found for it.
+     */
+    protected int pageIn(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return -1;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid) {
+	    CoffSection section = pageSection[vpn];
+	    int ppn;
+	    if (section != null && section.isReadOnly()) {
+		// read-only pages are shared by every process running the file
+		ppn = executable.mapTextPage(section, vpn, this);
+		if (ppn < 0)
+		    return -1;
+	    }
+	    else {
+		ppn = UserKernel.allocateFrame();
+		if (ppn < 0)
+		    return -1;
+
+		if (swapSlot[vpn] >= 0) {
+		    UserKernel.swap.read(swapSlot[vpn], ppn);
+		}
+		else if (section != null) {
+		    section.loadPage(vpn - section.getFirstVPN(), ppn);
+		}
+		else {
+		    byte[] memory = Machine.processor().getMemory();
+		    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize,
+				(byte) 0);
+		}
+
+		UserKernel.mapFrame(ppn, this, vpn);
+	    }
+
+	    // the page is about to be touched, so it should not be the clock's
+	    // next victim
+	    entry.ppn = ppn;
+	    entry.valid = true;
+	    entry.used = true;
+	    entry.dirty = false;
+	}
+
+	return entry.ppn;
+    }
+
+    /**
+     * Evict a page from physical memory. A dirty page is written to a new
+     * swap slot first, unless another process sharing the page has just
+     * written it, in which case that slot is shared. A clean page is simply
+     * dropped, since it can be read back from its swap slot, its COFF
+     * section, or recreated as zeros. Called by the kernel with
+     * <tt>UserKernel.memoryLock</tt> held; the kernel reuses the physical
+     * page.
+     *
+     * @param	vpn	the virtual page number of the page to evict.
+     * @param	slot	a swap slot already holding the page's contents, or
+     *			-1.
+     * @return	the swap slot holding the page's contents, or <tt>slot</tt>
+     *		if the page was clean.
+     */
+    protected int pageOut(int vpn, int slot) {
+	TranslationEntry entry = pageTable[vpn];
+
+	if (entry.dirty) {
+	    // the old slot may be shared, so it is never overwritten
+	    if (swapSlot[vpn] >= 0)
+		UserKernel.swap.free(swapSlot[vpn]);
+
+	    if (slot >= 0) {
+		UserKernel.swap.share(slot);
+	    }
+	    else {
+		slot = UserKernel.swap.allocate();
+		UserKernel.swap.write(slot, entry.ppn);
+	    }
+	    swapSlot[vpn] = slot;
+	}
+
+	entry.valid = false;
+	return slot;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	UserKernel.memoryLock.acquire();
+	UserKernel.invalidateTLB(this);
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		UserKernel.freeFrame(pageTable[vpn].ppn, this);
+		pageTable[vpn].valid = false;
+	    }
+	    if (swapSlot[vpn] >= 0) {
+		UserKernel.swap.free(swapSlot[vpn]);
+		swapSlot[vpn] = -1;
+	    }
+	}
+	UserKernel.memoryLock.release();
+
+	executable.release();
     }    
 
+    /**
+     * Give this process its own writable copy of a copy-on-write page. If no
+     * other process shares the page any more, it is just made writable. A
+     * page evicted since the fault is also just made writable, since it
+     * will be paged back in to a page of its own. The caller must hold
+     * <tt>UserKernel.memoryLock</tt>.
+     *
+     * @param	vpn	the virtual page number of the page.
+     * @return	<tt>false</tt> if the page is genuinely read-only, or no
+     *		physical page could be found for the copy.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (!copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid && UserKernel.isFrameShared(entry.ppn)) {
+	    // keep the shared page from being evicted while it is copied
+	    UserKernel.pinFrame(entry.ppn);
+	    int ppn = UserKernel.allocateFrame();
+	    if (ppn < 0) {
+		UserKernel.releaseFrame(entry.ppn);
+		return false;
+	    }
+
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, entry.ppn*pageSize,
+			     memory, ppn*pageSize, pageSize);
+
+	    UserKernel.releaseFrame(entry.ppn);
+	    UserKernel.freeFrame(entry.ppn, this);
+	    entry.ppn = ppn;
+	    UserKernel.mapFrame(ppn, this, vpn);
+	}
+
+	copyOnWrite[vpn] = false;
+	entry.readOnly = false;
+	UserKernel.invalidateTLB(this, vpn);
+	return true;
+    }
+
+    /**
+     * Handle a TLB miss. The page is paged in if it is not in physical
+     * memory, and its page table entry is loaded into the TLB.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>false</tt> if the address is not part of this process's
+     *		address space.
+     */
+    protected boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+
+	UserKernel.memoryLock.acquire();
+
+	boolean mapped = (pageIn(vaddr) >= 0);
+	if (mapped)
+	    UserKernel.refillTLB(pageTable[vpn]);
+
+	UserKernel.memoryLock.release();
+
+	return mapped;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -330,6 +548,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked child resumes where its parent called fork()
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -351,35 +577,13 @@ public class UserProcess {
          return virtualPN < numPages && virtualPN >= 0;
     }
     
-    /**
-     * Get next available file descripter
-     */
-    protected int getDescriptor() {
-        for (int i = 2; i < 16; i++) {
-	        if (fileTable[i] == null) {
-	        	return i;
-	        }
-        }
-        return -1;
-     }
-       
-    /**
-	 * Checks whether the file descriptor is valid
-	 */
-    private boolean isValidDescriptor(int descIndex) {
-        if ((descIndex < 0) || (descIndex >= 16)) { //Array Range check
-	        	return false;
-	    } else {
-	        	return fileTable[descIndex] != null; //Valid Entry check
-        }
-     }
-    
     /**
      * Handle the halt() system call. 
      */
     private int handleHalt() {
     	if(PID == 0){
-    		Machine.halt();
+    		// the kernel drains queued console output and dirty file blocks first
+    		Kernel.kernel.terminate();
     		Lib.assertNotReached("Machine.halt() did not halt machine!");
     		return 0;
     	}else{
@@ -387,6 +591,185 @@ public class UserProcess {
     	}
     }
     
+    /**
+     * Handle exit(int) system call. Never returns.
+     * status is the exit status passed to the parent's join
+     */
+    private int handleExit(int status) {
+    	terminate(Integer.valueOf(status));
+    	return 0;
+    }
+
+    /**
+     * Handle exec(char*,int,char**) system call
+     * fp is virtual address of the name of the executable, which must end in .coff
+     * argc is the no. of arguments
+     * argvAddr is virtual address of the array of argument string pointers
+     */
+    private int handleExec(int fp, int argc, int argvAddr) {
+    	if (!isValidAddress(fp) || argc < 0 || argc > pageSize/4) {
+    		return -1;
+    	}
+
+    	String fileName = readVirtualMemoryString(fp, 256);
+    	if (fileName == null || !fileName.endsWith(".coff")) {
+    		return -1;
+    	}
+
+    	byte[] pointers = new byte[argc*4];
+    	if (readVirtualMemory(argvAddr, pointers) != pointers.length) {
+    		return -1;
+    	}
+
+    	String[] args = new String[argc];
+    	for (int i = 0; i < argc; i++) {
+    		args[i] = readVirtualMemoryString(Lib.bytesToInt(pointers, i*4), 256);
+    		if (args[i] == null) {
+    			return -1;
+    		}
+    	}
+
+    	UserProcess child = newUserProcess();
+    	child.inheritFiles(this);
+    	if (!child.execute(fileName, args)) {
+    		child.fileTable.closeAll();
+    		return -1;
+    	}
+
+    	children.put(child.PID, child);
+    	return child.PID;
+    }
+
+    /**
+     * Handle join(int,int*) system call
+     * pid is the process ID of a child of this process that has not been joined
+     * statusAddr is virtual address where to store the child's exit status
+     * Returns 1 if the child exited normally, 0 if it was killed, -1 if pid is not a child
+     */
+    private int handleJoin(int pid, int statusAddr) {
+    	UserProcess child = children.remove(pid);
+    	if (child == null) {
+    		return -1;
+    	}
+
+    	child.exited.P();
+
+    	if (child.exitStatus == null) {
+    		return 0;
+    	}
+    	writeVirtualMemory(statusAddr, Lib.bytesFromInt(child.exitStatus));
+    	return 1;
+    }
+
+    /**
+     * Replace this new process's descriptors with copies of its parent's,
+     * sharing the parent's open files.
+     *
+     * @param	parent	the process creating this one.
+     */
+    private void inheritFiles(UserProcess parent) {
+	fileTable.closeAll();
+	fileTable = parent.fileTable.copy();
+    }
+
+    /**
+     * Handle fork() system call
+     * Returns the child's PID in the parent and 0 in the child
+     */
+    private int handleFork() {
+    	UserProcess child = newUserProcess();
+    	child.inheritFiles(this);
+    	child.executable = executable;
+    	child.coff = coff;
+    	child.numPages = numPages;
+    	child.pageSection = pageSection;
+    	child.pageTable = new TranslationEntry[numPages];
+    	child.copyOnWrite = new boolean[numPages];
+    	child.swapSlot = new int[numPages];
+    	Arrays.fill(child.swapSlot, -1);
+    	executable.retain();
+
+    	UserKernel.memoryLock.acquire();
+
+    	// share every page in memory, turning writable ones copy-on-write,
+    	// and every swap slot; pages never touched are loaded by each process
+    	// on its own
+    	for (int vpn = 0; vpn < numPages; vpn++) {
+    		TranslationEntry entry = pageTable[vpn];
+    		if (entry.valid) {
+    			UserKernel.shareFrame(entry.ppn, child, vpn);
+    			if (!entry.readOnly) {
+    				entry.readOnly = true;
+    				copyOnWrite[vpn] = true;
+    			}
+    		}
+    		else if (swapSlot[vpn] >= 0) {
+    			UserKernel.swap.share(swapSlot[vpn]);
+    			child.swapSlot[vpn] = swapSlot[vpn];
+    		}
+    		child.copyOnWrite[vpn] = copyOnWrite[vpn];
+    		// the child has no swap copy, so its shared writable pages
+    		// count as dirty; text is always loaded from the executable
+    		boolean dirty =
+    			entry.valid && (!entry.readOnly || copyOnWrite[vpn]);
+    		child.pageTable[vpn] = new TranslationEntry(vpn, entry.ppn,
+    			entry.valid, entry.readOnly, false, dirty);
+    	}
+    	UserKernel.invalidateTLB(this);
+
+    	UserKernel.memoryLock.release();
+
+    	// the child returns 0 from the syscall
+    	Processor processor = Machine.processor();
+    	child.forkRegisters = new int[Processor.numUserRegisters];
+    	for (int i = 0; i < Processor.numUserRegisters; i++) {
+    		child.forkRegisters[i] = processor.readRegister(i);
+    	}
+    	child.forkRegisters[Processor.regV0] = 0;
+    	child.forkRegisters[Processor.regPC] =
+    		child.forkRegisters[Processor.regNextPC];
+    	child.forkRegisters[Processor.regNextPC] += 4;
+
+    	globalLock.acquire();
+    	runningProcesses++;
+    	globalLock.release();
+
+    	children.put(child.PID, child);
+    	new UThread(child).setName(KThread.currentThread().getName()).fork();
+
+    	return child.PID;
+    }
+
+    /**
+     * Release everything this process holds and finish its thread: close
+     * every open file, free its physical pages, and forget its children,
+     * which keep running on their own. Then wake a parent blocked in
+     * <tt>join()</tt>. The last process to terminate halts the machine.
+     * Never returns.
+     *
+     * @param	status	the exit status, or <tt>null</tt> if the process was
+     *			killed by an unhandled exception.
+     */
+    protected void terminate(Integer status) {
+	fileTable.closeAll();
+	unloadSections();
+	children.clear();
+
+	exitStatus = status;
+	exited.V();
+
+	globalLock.acquire();
+	boolean last = (--runningProcesses == 0);
+	globalLock.release();
+
+	if (last)
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+
+	Lib.assertNotReached();
+    }
+    
     /**
      * Handle create(char*) system call
      * fp is virtual address corresponding to the name of the file 
@@ -395,22 +778,24 @@ public class UserProcess {
     	if (!isValidAddress(fp)) {
     	     return -1;
     	}
-        int openDesc = getDescriptor();
-    	    
-        if (openDesc < 0) { //Already have 16 files open
+        String fileName = readVirtualMemoryString(fp, 256);
+        if (fileName == null) {
     	     return -1;
         }
-    	    
-        String fileName = readVirtualMemoryString(fp, 256);
+
+        if (UserKernel.isReservedFile(fileName)) {
+    	     return -1;
+        }
+
+        // a cached copy of the old contents must not be run again
+        Executable.invalidate(fileName);
         OpenFile newFile = UserKernel.fileSystem.open(fileName, true);
     	    
         if (newFile == null) { //Cannot open file
     	     return -1;
         }
     	    
-        fileTable[openDesc] = newFile;
-    	    
-        return openDesc;
+        return installFile(newFile);
     }
     
     /**
@@ -421,22 +806,34 @@ public class UserProcess {
     	if (!isValidAddress(fp)) {
     	     return -1;
     	}
-        int openDesc = getDescriptor();
-    	    
-        if (openDesc < 0) { //Already have 16 files open
+        String fileName = readVirtualMemoryString(fp, 256);
+        if (fileName == null) {
     	     return -1;
         }
-    	    
-        String fileName = readVirtualMemoryString(fp, 256);
+
+        if (UserKernel.isReservedFile(fileName)) {
+    	     return -1;
+        }
+
         OpenFile newFile = UserKernel.fileSystem.open(fileName, false);
     	    
         if (newFile == null) { //Cannot open file
     	     return -1;
         }
     	    
-        fileTable[openDesc] = newFile;
-    	    
-        return openDesc;
+        return installFile(newFile);
+    }
+
+    /**
+     * Give a newly opened file the lowest free descriptor, closing it again
+     * if the descriptor table is full.
+     */
+    private int installFile(OpenFile file) {
+    	int fd = fileTable.add(new SharedFile(file));
+    	if (fd < 0) {
+    		file.close();
+    	}
+    	return fd;
     }
 
     /**
@@ -446,44 +843,14 @@ public class UserProcess {
      * count is the no. of bytes to read
      */
     private int handleRead(int fd,int buf,int count){
-    	if (!isValidDescriptor(fd)) {
+    	OpenFile file = fileTable.getFile(fd);
+    	if (file == null || count < 0) {
    	     return -1;
     	}
     	if(!isValidAddress(buf)){
     		return -1;
     	}
-    	OpenFile file = fileTable[fd];
-    	
-    	int bytesToRead = count;
-    	int readSize = 0;
-    	int writeSize = 0;
-    	int ct = 0;
-    	
-    	while(bytesToRead != 0){
-    		if(bytesToRead >= pageSize)
-    			readSize = pageSize;
-    		else
-    			readSize = bytesToRead;
-    		
-    		byte[] buffer = new byte[readSize];
-    		int read = file.read(buffer, 0, readSize);
-    		
-    		if(read<0){
-    			return -1;
-    		}
-    		
-    		int write = writeVirtualMemory(buf,buffer,0,read);
-    		
-    		if(read != write){
-    			return -1;
-    		}
-    		
-    		bytesToRead -= read;
-    		ct += read;
-    		buf += read;
-    	}
-    
-    	return ct;
+    	return readFile(file, buf, count);
     }
     
     /**
@@ -493,44 +860,141 @@ public class UserProcess {
      * count is the no. of bytes to write
      */
     private int handleWrite(int fd,int buf,int count){
-    	if (!isValidDescriptor(fd)) {
+    	OpenFile file = fileTable.getFile(fd);
+    	if (file == null || count < 0) {
       	     return -1;
        	}
        	if(!isValidAddress(buf)){
        		return -1;
        	}
-       	OpenFile file = fileTable[fd];
-       	
-       	int bytesToWrite = count;
-       	int readSize = 0;
-       	int writeSize = 0;
-       	int ct = 0;
-       	
-       	while(bytesToWrite != 0){
-       		if(bytesToWrite >= pageSize)
-       			readSize = pageSize;
-       		else
-       			readSize = bytesToWrite;
-       		
-       		byte[] buffer = new byte[readSize];
-       		int read = readVirtualMemory(buf, buffer);
-       		
-       		if(read<0){
-       			return -1;
-       		}
-       		
-       		int write = file.write(buffer, 0, read);
-       		
-       		if(read != write){
-       			return -1;
-       		}
-       		
-       		bytesToWrite -= read;
-       		ct += read;
-       		buf += read;
-       	}
-       
-       	return ct;
+       	return writeFile(file, buf, count);
+    }
+
+    /**
+     * Handle readv(int,struct iovec*,int) system call
+     * fd is file descriptor 
+     * iov is virtual address of an array of (buffer, length) pairs to fill in order
+     * iovcnt is the no. of pairs
+     */
+    private int handleReadv(int fd,int iov,int iovcnt){
+    	return transferVector(fd, iov, iovcnt, false);
+    }
+    
+    /**
+     * Handle writev(int,struct iovec*,int) system call
+     * fd is file descriptor 
+     * iov is virtual address of an array of (buffer, length) pairs to write in order
+     * iovcnt is the no. of pairs
+     */
+    private int handleWritev(int fd,int iov,int iovcnt){
+    	return transferVector(fd, iov, iovcnt, true);
+    }
+
+    /**
+     * Run a whole vectored read or write against one file. The iovec array
+     * is copied in with a single <tt>readVirtualMemory()</tt>, then each
+     * buffer is transferred in order. A short transfer ends the call, as it
+     * would for a single read or write.
+     *
+     * @param	fd	the file descriptor.
+     * @param	iov	the virtual address of the iovec array, made of 8-byte
+     *			(buffer address, length) pairs.
+     * @param	iovcnt	the number of iovecs.
+     * @param	write	<tt>true</tt> for <tt>writev</tt>, <tt>false</tt>
+     *			for <tt>readv</tt>.
+     * @return	the total number of bytes transferred, or -1 if nothing was
+     *		transferred and an error occurred.
+     */
+    private int transferVector(int fd, int iov, int iovcnt, boolean write) {
+	OpenFile file = fileTable.getFile(fd);
+	if (file == null || iovcnt < 0 || iovcnt > maxIovecs)
+	    return -1;
+
+	byte[] vector = new byte[iovcnt*iovecSize];
+	if (readVirtualMemory(iov, vector) != vector.length)
+	    return -1;
+
+	int total = 0;
+
+	for (int i=0; i<iovcnt; i++) {
+	    int vaddr = Lib.bytesToInt(vector, i*iovecSize);
+	    int length = Lib.bytesToInt(vector, i*iovecSize+4);
+	    if (length < 0 || (length > 0 && !isValidAddress(vaddr)))
+		return (total > 0) ? total : -1;
+
+	    int amount = write ? writeFile(file, vaddr, length) :
+		readFile(file, vaddr, length);
+	    if (amount < 0)
+		return (total > 0) ? total : -1;
+
+	    total += amount;
+	    if (amount < length)
+		break;
+	}
+
+	return total;
+    }
+
+    /**
+     * Read up to <i>count</i> bytes from a file into this process's virtual
+     * memory, a page at a time through <tt>ioBuffer</tt>. Stops early at end
+     * of file, or when the file has no more bytes ready (as for the console).
+     *
+     * @param	file	the file to read.
+     * @param	vaddr	the first byte of virtual memory to fill.
+     * @param	count	the maximum number of bytes to read.
+     * @return	the number of bytes read into virtual memory, or -1 if an
+     *		error occurred before any byte was.
+     */
+    private int readFile(OpenFile file, int vaddr, int count) {
+	int amount = 0;
+	while (amount < count) {
+	    int chunk = Math.min(count-amount, ioBuffer.length);
+	    int read = file.read(ioBuffer, 0, chunk);
+	    if (read < 0)
+		return (amount > 0) ? amount : -1;
+
+	    int copied = writeVirtualMemory(vaddr+amount, ioBuffer, 0, read);
+	    amount += copied;
+	    if (copied < read)
+		return (amount > 0) ? amount : -1;
+
+	    if (read < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write <i>count</i> bytes from this process's virtual memory to a file,
+     * a page at a time through <tt>ioBuffer</tt>.
+     *
+     * @param	file	the file to write.
+     * @param	vaddr	the first byte of virtual memory to write out.
+     * @param	count	the number of bytes to write.
+     * @return	the number of bytes written, or -1 if an error occurred
+     *		before any byte was.
+     */
+    private int writeFile(OpenFile file, int vaddr, int count) {
+	int amount = 0;
+	while (amount < count) {
+	    int chunk = Math.min(count-amount, ioBuffer.length);
+	    // write out whatever part of the chunk is addressable
+	    int copied = readVirtualMemory(vaddr+amount, ioBuffer, 0, chunk);
+
+	    int written = (copied > 0) ? file.write(ioBuffer, 0, copied) : 0;
+	    if (written < 0)
+		return (amount > 0) ? amount : -1;
+
+	    amount += written;
+	    if (copied < chunk)
+		return (amount > 0) ? amount : -1;
+	    if (written < chunk)
+		break;
+	}
+
+	return amount;
     }
     
     /**
@@ -538,18 +1002,25 @@ public class UserProcess {
      * fd is file descriptor 
      */
     private int handleClose(int fd){
-    	if(!isValidDescriptor(fd)){
+    	if(!fileTable.close(fd)){
     		return -1;
     	}
-    	OpenFile file = fileTable[fd];
-    	file.close();
-    	fileTable[fd] = null;
     	return 0;
     }
+
+    /**
+     * Handle dup(int) system call
+     * fd is file descriptor to duplicate
+     * Returns the lowest free descriptor, now sharing fd's open file and position
+     */
+    private int handleDup(int fd){
+    	return fileTable.dup(fd);
+    }
     
     /**
-     * Handle unlink(int) system call
-     * fp is file descriptor 
+     * Handle unlink(char*) system call
+     * fp is virtual address corresponding to the name of the file 
+     * A file that is still open is removed when its last descriptor is closed
      */
     private int handleUnlink(int fp){
     	if(!isValidAddress(fp)){
@@ -557,6 +1028,13 @@ public class UserProcess {
     	}
     	
     	String fileName = readVirtualMemoryString(fp, 256);
+    	if (fileName == null) {
+    		return -1;
+    	}
+    	if (UserKernel.isReservedFile(fileName)) {
+    		return -1;
+    	}
+        Executable.invalidate(fileName);
         if(UserKernel.fileSystem.remove(fileName))
         	return 0;
     	
@@ -573,7 +1051,14 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallReadv = 13,
+	syscallWritev = 14,
+	syscallFork = 15,
+	syscallDup = 16;
+
+    /** Size of one iovec, and the most a readv or writev may pass. */
+    private static final int iovecSize = 8, maxIovecs = 64;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -594,6 +1079,12 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  readv(int fd, struct iovec *iov,
+     *				int iovcnt);</tt></td></tr>
+     * <tr><td>14</td><td><tt>int  writev(int fd, struct iovec *iov,
+     *				int iovcnt);</tt></td></tr>
+     * <tr><td>15</td><td><tt>int  fork();</tt></td></tr>
+     * <tr><td>16</td><td><tt>int  dup(int fd);</tt></td></tr>
      * </table>
      * 
      * @param	syscall	the syscall number.
@@ -607,6 +1098,12 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
+	case syscallExit:
+		return handleExit(a0);
+	case syscallExec:
+		return handleExec(a0,a1,a2);
+	case syscallJoin:
+		return handleJoin(a0,a1);
 	case syscallCreate:
 		return handleCreate(a0);		
 	case syscallOpen:
@@ -619,10 +1116,18 @@ public class UserProcess {
 		return handleClose(a0);		
 	case syscallUnlink:
 		return handleUnlink(a0);
+	case syscallReadv:
+		return handleReadv(a0,a1,a2);
+	case syscallWritev:
+		return handleWritev(a0,a1,a2);
+	case syscallFork:
+		return handleFork();
+	case syscallDup:
+		return handleDup(a0);
 
 	default:
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!"+syscall);
+	    terminate(null);
 	}
 	return 0;
     }
@@ -649,27 +1154,81 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+	    
+	case Processor.exceptionPageFault:
+	    // the faulting instruction is retried once the page is loaded
+	    UserKernel.memoryLock.acquire();
+	    int ppn = pageIn(processor.readRegister(Processor.regBadVAddr));
+	    UserKernel.memoryLock.release();
+	    if (ppn >= 0)
+		break;
+	    
+	    Lib.debug(dbgProcess, "Bad virtual address: " +
+		      processor.readRegister(Processor.regBadVAddr));
+	    terminate(null);
+	    break;
+
+	case Processor.exceptionTLBMiss:
+	    // the faulting instruction is retried once the TLB is refilled
+	    if (handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		break;
+
+	    Lib.debug(dbgProcess, "Bad virtual address: " +
+		      processor.readRegister(Processor.regBadVAddr));
+	    terminate(null);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    // the faulting store is retried once the page has been copied
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+	    UserKernel.memoryLock.acquire();
+	    boolean copied = (vpn >= 0 && vpn < numPages &&
+			      breakCopyOnWrite(vpn));
+	    UserKernel.memoryLock.release();
+	    if (copied)
+		break;
+
+	    Lib.debug(dbgProcess, "Write to read-only address: " +
+		      processor.readRegister(Processor.regBadVAddr));
+	    terminate(null);
+	    break;
 				       
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    terminate(null);
 	}
     }
 
-    /** The program being run by this process. */
+    /** The program being run by this process, and its COFF file. */
+    protected Executable executable;
     protected Coff coff;
 
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
+    /**
+     * The COFF section holding each page's initial contents, or
+     * <tt>null</tt> for stack and argument pages, which start zeroed.
+     */
+    protected CoffSection[] pageSection;
+    /**
+     * Which pages are shared with a forked process and marked read-only
+     * only until this process first writes them.
+     */
+    protected boolean[] copyOnWrite;
+    /** The swap slot holding each page's last evicted copy, or -1. */
+    protected int[] swapSlot;
 
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
     private int argc, argv;
+    /** The user registers a forked child starts with. */
+    private int[] forkRegisters = null;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
@@ -678,8 +1237,23 @@ public class UserProcess {
     private static int nextPID;
     protected int PID;
     
+    /** Processes that have started and not yet terminated. */
+    private static int runningProcesses = 0;
+    
     private static Lock globalLock = new Lock();
+
+    /** Children of this process that have not been joined, by PID. */
+    private HashMap<Integer,UserProcess> children =
+	new HashMap<Integer,UserProcess>();
+    /** The exit status, or <tt>null</tt> if killed by an exception. */
+    private Integer exitStatus = null;
+    /** Released once, when this process terminates. */
+    private Semaphore exited = new Semaphore(0);
     
-    protected OpenFile[] fileTable = new OpenFile[16];
+    /** This process's file descriptors. */
+    protected FileTable fileTable = new FileTable();
+
+    /** Staging buffer for file reads and writes, reused by every call. */
+    private byte[] ioBuffer = new byte[pageSize];
     
 }